@@ -0,0 +1,23 @@
+package ell;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//
+// Entry point of target/benchmarks.jar. Accepts the usual JMH command line, and always adds the
+// gc profiler so that allocation rate (gc.alloc.rate.norm, bytes/op) is reported next to throughput.
+//
+public class BenchmarkRunner {
+
+    public static void main(String [] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options opts = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(opts).run();
+    }
+
+}
@@ -0,0 +1,61 @@
+package ell;
+import static ell.Runtime.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// The per-call overhead of running small scripts from Java, with and without the per-thread LVM
+// reuse (Runtime.reuseVMs): Runtime.exec of a tiny precompiled thunk, and Runtime.call of closures
+// a module defined, which skips the thunk altogether.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallBenchmark {
+
+    static final String DEFS =
+        "(define inc (lambda (x) (+ x 1)))\n" +
+        "(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))";
+
+    @Param({"false", "true"})
+    public boolean reuseVMs;
+
+    LCode script;
+    var inc;
+    var fib;
+    var n;
+
+    @Setup
+    public void setup() {
+        Runtime.reuseVMs = reuseVMs;
+        LModule m = Programs.load("calls", Programs.forms(DEFS));
+        script = Programs.compile(m, "(inc 41)");
+        inc = Programs.run(Programs.compile(m, "inc"));
+        fib = Programs.run(Programs.compile(m, "fib"));
+        n = number(10);
+    }
+
+    @TearDown
+    public void teardown() {
+        Runtime.reuseVMs = true;
+    }
+
+    @Benchmark
+    public var exec() {
+        return Runtime.exec(script);
+    }
+
+    @Benchmark
+    public var callInc() {
+        return Runtime.call(inc, n);
+    }
+
+    @Benchmark
+    public var callFib() {
+        return Runtime.call(fib, n);
+    }
+
+}
@@ -0,0 +1,37 @@
+package ell;
+import static ell.Runtime.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Measures Compiler.compile alone, on already-read source. A fresh module without primitives is
+// used per op so the constant pool does not grow across invocations.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompilerBenchmark {
+
+    var pi;
+    var benchx;
+
+    @Setup
+    public void setup() {
+        pi = Programs.begin(Programs.forms(Programs.source("src/main/ell/pi.ell")));
+        benchx = Programs.begin(Programs.forms(Programs.source("src/main/scm/benchx.scm")));
+    }
+
+    @Benchmark
+    public var compilePi() {
+        return new Compiler(new LModule("pi", null)).compile(pi);
+    }
+
+    @Benchmark
+    public var compileBenchx() {
+        return new Compiler(new LModule("benchx", null)).compile(benchx);
+    }
+
+}
@@ -0,0 +1,81 @@
+package ell;
+import static ell.Runtime.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Independent evaluations against one shared module, from 1, 2, 4 and all available threads at once.
+// Each thread calls the module's closures on its own pooled LVM, so the aggregate throughput should
+// scale with the number of cores: compare the ops/s of fib1, fib2, fib4 and fibMax (and the same for
+// lists, which also allocates).
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrencyBenchmark {
+
+    @Param({"0", "1000"})
+    public int jitThreshold;
+
+    var fib;
+    var lists;
+    var n;
+
+    @Setup
+    public void setup() {
+        Runtime.jitThreshold = jitThreshold;
+        LModule m = Programs.load("shared", Programs.forms(SuperinstructionBenchmark.FIB + "\n" + InterpreterBenchmark.LISTS));
+        fib = Programs.run(Programs.compile(m, "fib"));
+        lists = Programs.run(Programs.compile(m, "(lambda (n) (len (rev (build n nil) nil) 0))"));
+        n = number(15);
+    }
+
+    @TearDown
+    public void teardown() {
+        Runtime.jitThreshold = 0;
+    }
+
+    @Benchmark @Threads(1)
+    public var fib1() {
+        return Runtime.call(fib, n);
+    }
+
+    @Benchmark @Threads(2)
+    public var fib2() {
+        return Runtime.call(fib, n);
+    }
+
+    @Benchmark @Threads(4)
+    public var fib4() {
+        return Runtime.call(fib, n);
+    }
+
+    @Benchmark @Threads(Threads.MAX)
+    public var fibMax() {
+        return Runtime.call(fib, n);
+    }
+
+    @Benchmark @Threads(1)
+    public var lists1() {
+        return Runtime.call(lists, n);
+    }
+
+    @Benchmark @Threads(2)
+    public var lists2() {
+        return Runtime.call(lists, n);
+    }
+
+    @Benchmark @Threads(4)
+    public var lists4() {
+        return Runtime.call(lists, n);
+    }
+
+    @Benchmark @Threads(Threads.MAX)
+    public var listsMax() {
+        return Runtime.call(lists, n);
+    }
+
+}
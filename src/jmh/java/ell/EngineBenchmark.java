@@ -0,0 +1,119 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// The programs of InterpreterBenchmark, run on the other engines instead of the LVM: the
+// self-specializing AST interpreter, and the register machine, for a side by side comparison of the
+// register and stack instruction formats. The code is compiled once in setup, so the trees specialize
+// during warmup, as they would in a long running program.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+    @Param({"ast", "registers"})
+    public String engine;
+
+    //an expression compiled for the engine, and the module to run it in
+    static abstract class Program {
+        abstract var exec();
+        var run() {
+            var result = exec();
+            if (result == null)
+                throw error("benchmark program failed: " + this);
+            return result;
+        }
+    }
+
+    Program fib;
+    Program closures;
+    Program lists;
+    Program pi;
+    Program benchxSort;
+    Program benchxPi;
+    PrintStream out;
+
+    Program compile(final LModule module, var expr) {
+        if (engine.equals("ast")) {
+            final Ast.Expr code = new Compiler(module).compileAst(expr);
+            return new Program() {
+                var exec() { return Ast.exec(code, module); }
+            };
+        }
+        final Registers.Code code = new Compiler(module).compileRegisters(expr);
+        return new Program() {
+            var exec() { return Registers.exec(code, module); }
+        };
+    }
+
+    Program compile(LModule module, String expr) {
+        return compile(module, read(string(expr)));
+    }
+
+    LModule load(String name, List<var> forms) {
+        LModule module = module(name, Primitives.class);
+        compile(module, Programs.begin(forms)).run();
+        return module;
+    }
+
+    @Setup
+    public void setup() {
+        out = System.out;
+        fib = compile(load("fibonacci", Programs.forms(Programs.source("src/main/ell/fibonacci.ell"))), "(fib 20)");
+        List<var> defs = Programs.forms(Programs.source("src/main/ell/pi.ell"));
+        defs.remove(defs.size() - 1);
+        pi = compile(load("pi", defs), "(pi 1000 5)");
+        closures = compile(load("closures", Programs.forms(InterpreterBenchmark.CLOSURES)), "(closures 1000 0)");
+        lists = compile(load("lists", Programs.forms(InterpreterBenchmark.LISTS)), "(len (rev (build 1000 nil) nil) 0)");
+        defs = Programs.forms(Programs.source("src/main/scm/benchx.scm"));
+        defs.remove(defs.size() - 1);
+        LModule benchx = load("benchx", defs);
+        benchxSort = compile(benchx, "(sort (make-foo 10000) <)");
+        benchxPi = compile(benchx, "(pi 1000 5)");
+        System.setOut(Programs.NULL_OUT);
+    }
+
+    @TearDown
+    public void teardown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public var fib() {
+        return fib.run();
+    }
+
+    @Benchmark
+    public var pi() {
+        return pi.run();
+    }
+
+    @Benchmark
+    public var closures() {
+        return closures.run();
+    }
+
+    @Benchmark
+    public var lists() {
+        return lists.run();
+    }
+
+    @Benchmark
+    public var benchxSort() {
+        return benchxSort.run();
+    }
+
+    @Benchmark
+    public var benchxPi() {
+        return benchxPi.run();
+    }
+
+}
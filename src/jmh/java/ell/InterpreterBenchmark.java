@@ -0,0 +1,108 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Measures LVM.exec on small but representative programs. Each benchmark runs a precompiled
+// thunk against a module whose definitions were loaded once in setup. The flatClosures param
+// compiles everything in flat closure mode instead of with linked frames, and jitThreshold > 0
+// lets hot functions be compiled to JVM bytecode.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+
+    static final String CLOSURES =
+        "(define make-adder (lambda (n) (lambda (x) (+ x n))))\n" +
+        "(define compose (lambda (f g) (lambda (x) (f (g x)))))\n" +
+        "(define closures (lambda (i acc)\n" +
+        "  (if (= i 0) acc (closures (- i 1) ((compose (make-adder i) (make-adder 1)) acc)))))";
+
+    static final String LISTS =
+        "(define build (lambda (n acc) (if (= n 0) acc (build (- n 1) (cons n acc)))))\n" +
+        "(define rev (lambda (l acc) (if (null? l) acc (rev (cdr l) (cons (car l) acc)))))\n" +
+        "(define len (lambda (l n) (if (null? l) n (len (cdr l) (+ n 1)))))";
+
+    @Param({"false", "true"})
+    public boolean flatClosures;
+
+    @Param({"0", "1000"})
+    public int jitThreshold;
+
+    LCode fib;
+    LCode closures;
+    LCode lists;
+    LCode pi;
+    LCode benchxSort;
+    LCode benchxPi;
+    PrintStream out;
+
+    @Setup
+    public void setup() {
+        out = System.out;
+        Runtime.flatClosures = flatClosures;
+        Runtime.jitThreshold = jitThreshold;
+        LModule m = Programs.load("fibonacci", Programs.forms(Programs.source("src/main/ell/fibonacci.ell")));
+        fib = Programs.compile(m, "(fib 20)");
+        //pi.ell ends with a call to (pi 1000 5), and benchx.scm with a driver loop; keep only their definitions
+        List<var> defs = Programs.forms(Programs.source("src/main/ell/pi.ell"));
+        defs.remove(defs.size() - 1);
+        m = Programs.load("pi", defs);
+        pi = Programs.compile(m, "(pi 1000 5)");
+        m = Programs.load("closures", Programs.forms(CLOSURES));
+        closures = Programs.compile(m, "(closures 1000 0)");
+        m = Programs.load("lists", Programs.forms(LISTS));
+        lists = Programs.compile(m, "(len (rev (build 1000 nil) nil) 0)");
+        defs = Programs.forms(Programs.source("src/main/scm/benchx.scm"));
+        defs.remove(defs.size() - 1);
+        m = Programs.load("benchx", defs);
+        benchxSort = Programs.compile(m, "(sort (make-foo 10000) <)");
+        benchxPi = Programs.compile(m, "(pi 1000 5)");
+        System.setOut(Programs.NULL_OUT); //pi displays its digits
+    }
+
+    @TearDown
+    public void teardown() {
+        System.setOut(out);
+        Runtime.flatClosures = false;
+        Runtime.jitThreshold = 0;
+    }
+
+    @Benchmark
+    public var fib() {
+        return Programs.run(fib);
+    }
+
+    @Benchmark
+    public var pi() {
+        return Programs.run(pi);
+    }
+
+    @Benchmark
+    public var closures() {
+        return Programs.run(closures);
+    }
+
+    @Benchmark
+    public var lists() {
+        return Programs.run(lists);
+    }
+
+    @Benchmark
+    public var benchxSort() {
+        return Programs.run(benchxSort);
+    }
+
+    @Benchmark
+    public var benchxPi() {
+        return Programs.run(benchxPi);
+    }
+
+}
@@ -0,0 +1,52 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Loading a large generated module, i.e. one with tens of thousands of definitions: compiling it
+// form by form as it is read (loadModule), and reading it into one (begin ...) form (readSource, as the
+// AST interpreter and the register machine do). Both should grow linearly with the number of forms.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoadBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int forms;
+
+    File source;
+
+    @Setup
+    public void setup() throws IOException {
+        source = File.createTempFile("generated", ".ell");
+        try (FileWriter w = new FileWriter(source)) {
+            for (int i = 0; i < forms; i++)
+                w.write("(define f" + i + " (lambda (x) (if (< x " + i + ") (+ x 1) (* x 2))))\n");
+            w.write("(f0 1)\n");
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        source.delete();
+    }
+
+    @Benchmark
+    public var loadModule() {
+        return Runtime.loadModule("generated", file(source.getPath()), Primitives.class);
+    }
+
+    @Benchmark
+    public var readSource() {
+        return Runtime.readSource(file(source.getPath()));
+    }
+
+}
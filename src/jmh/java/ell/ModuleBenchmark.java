@@ -0,0 +1,66 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Startup of a deep use graph: a chain of DEPTH modules, each of which also uses a common library, so
+// the library is used DEPTH times but should only be loaded once. Each op forgets the loaded modules
+// (but not the ELL_PATH index) and runs the top module again.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModuleBenchmark {
+
+    static final int DEPTH = 30;
+
+    File dir;
+    String top;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("modules").toFile();
+        StringBuilder lib = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            lib.append("(define f" + i + " (lambda (x) (if (< x 2) x (+ (f" + i + " (- x 1)) " + i + "))))\n");
+        write("lib.ell", lib.toString());
+        for (int i = 0; i < DEPTH; i++) {
+            String next = (i + 1 < DEPTH)? "(use m" + (i + 1) + ")\n" : "";
+            write("m" + i + ".ell", "(use lib)\n" + next + "(define g" + i + " (lambda (x) (f" + i + " x)))\n");
+        }
+        top = write("top.ell", "(use m0)\n(g0 10)\n").getPath();
+        setModulePath(dir.getPath());
+    }
+
+    private File write(String name, String text) throws IOException {
+        File f = new File(dir, name);
+        try (FileWriter w = new FileWriter(f)) {
+            w.write(text);
+        }
+        return f;
+    }
+
+    @TearDown
+    public void teardown() {
+        setModulePath(null);
+        clearModules();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public var useGraph() {
+        clearModules();
+        return runModule(top, Primitives.class);
+    }
+
+}
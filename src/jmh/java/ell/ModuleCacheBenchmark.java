@@ -0,0 +1,63 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Measures Runtime.loadModule, from source or (with cacheModules) from the fresh .ellc image that the
+// first load saved. The sources are copied to a temporary directory, so the images land there.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModuleCacheBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cacheModules;
+
+    File dir;
+    String pi;
+    String benchx;
+
+    @Setup
+    public void setup() throws IOException {
+        Runtime.cacheModules = cacheModules;
+        dir = Files.createTempDirectory("ellc").toFile();
+        pi = copy("src/main/ell/pi.ell");
+        benchx = copy("src/main/scm/benchx.scm");
+        loadModule(pi, Primitives.class);
+        loadModule(benchx, Primitives.class);
+    }
+
+    private String copy(String path) throws IOException {
+        File f = new File(dir, new File(path).getName());
+        Files.copy(new File(path).toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return f.getPath();
+    }
+
+    @TearDown
+    public void teardown() {
+        Runtime.cacheModules = false;
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public var loadPi() {
+        return loadModule(pi, Primitives.class);
+    }
+
+    @Benchmark
+    public var loadBenchx() {
+        return loadModule(benchx, Primitives.class);
+    }
+
+}
@@ -0,0 +1,59 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Reads a large file of independent top-level forms (the .elldn test data, repeated to largeSize MB)
+// with Notation.readForms on 1, 2, 4 and 8 threads, to check that the throughput scales with the
+// cores. Like ReaderBenchmark, it also counts the megabytes read, which JMH reports per second.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelReaderBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"32"})
+    public int largeSize;
+
+    File data;
+
+    @Setup
+    public void setup() throws IOException {
+        data = File.createTempFile("forms", ".elldn");
+        byte [] bytes = (Programs.source("src/test/resources/test1.elldn") + "\n").getBytes("UTF-8");
+        long size = (long)largeSize << 20;
+        try (FileOutputStream out = new FileOutputStream(data)) {
+            for (long n = 0; n < size; n += bytes.length)
+                out.write(bytes);
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        data.delete();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+    }
+
+    @Benchmark
+    public int readForms(Throughput throughput) {
+        var forms = Notation.readForms(file(data.getPath()), parallelism);
+        throughput.megabytes += data.length() / 1e6;
+        return length(forms);
+    }
+
+}
@@ -0,0 +1,56 @@
+package ell;
+import static ell.Runtime.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Compares calling a builtin through LPrimitive (a bound MethodHandle) with the reflective
+// Method.invoke it replaced, for both a fixed-arity primitive and a (var [] s, int sp, int argc) one.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrimitiveBenchmark {
+
+    Primitives impl;
+    Method cons;
+    Method plus;
+    LPrimitive consPrimitive;
+    LPrimitive plusPrimitive;
+    var [] args;
+
+    @Setup
+    public void setup() throws Exception {
+        impl = new Primitives();
+        cons = Primitives.class.getMethod("primitive_cons", var.class, var.class);
+        plus = Primitives.class.getMethod("primop_plus", var[].class, int.class, int.class);
+        consPrimitive = new LPrimitive("cons", cons, impl);
+        plusPrimitive = new LPrimitiveN("+", plus, impl);
+        args = new var[] { number(1), number(2), number(3) };
+    }
+
+    @Benchmark
+    public Object reflectiveFixed() throws Exception {
+        return cons.invoke(impl, args[0], args[1]);
+    }
+
+    @Benchmark
+    public var handleFixed() {
+        return consPrimitive.call(args, 0, 2);
+    }
+
+    @Benchmark
+    public Object reflectiveN() throws Exception {
+        return plus.invoke(impl, args, 0, 3);
+    }
+
+    @Benchmark
+    public var handleN() {
+        return plusPrimitive.call(args, 0, 3);
+    }
+
+}
@@ -0,0 +1,76 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// Shared plumbing for the benchmarks: load a module from source text, compile an expression
+// against it, and run the result on a fresh LVM the same way Runtime.exec does.
+//
+class Programs {
+
+    static String source(String path) {
+        try {
+            File f = new File(path);
+            byte [] buf = new byte[(int)f.length()];
+            try (FileInputStream fis = new FileInputStream(f)) {
+                int n = 0;
+                while (n < buf.length)
+                    n += fis.read(buf, n, buf.length - n);
+            }
+            return new String(buf, "UTF-8");
+        } catch (IOException e) {
+            throw error("cannot read benchmark source " + path + ": " + e.getMessage());
+        }
+    }
+
+    static List<var> forms(String text) {
+        List<var> result = new ArrayList<var>();
+        LReaderChannel chan = new LReaderChannel(new StringReader(text));
+        var expr = chan.read();
+        while (expr != EOI) {
+            result.add(expr);
+            expr = chan.read();
+        }
+        return result;
+    }
+
+    static var begin(List<var> forms) {
+        return cons(intern("begin"), makeList(forms));
+    }
+
+    /** A module with the core primitives and the given definitions already executed. */
+    static LModule load(String name, List<var> forms) {
+        LModule module = module(name, Primitives.class);
+        if (!forms.isEmpty())
+            run(compile(module, begin(forms)));
+        return module;
+    }
+
+    static LCode compile(LModule module, var expr) {
+        return (LCode)new Compiler(module).compile(expr);
+    }
+
+    static LCode compile(LModule module, String expr) {
+        return compile(module, read(string(expr)));
+    }
+
+    static var run(LCode code) {
+        var result = new LVM().exec(code, null);
+        if (result == null)
+            throw error("benchmark program failed: " + code);
+        return result;
+    }
+
+    static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte [] b, int off, int len) { }
+        });
+
+}
@@ -0,0 +1,157 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Measures Notation reading: every top-level datum of a source text, read from memory, and of large
+// .ell and .elldn files (the benchmark sources repeated to a few MB), read from disk. The file
+// benchmarks also count the megabytes read, which JMH reports per second as the read throughput.
+// The symbols file is generated code, nearly all symbols, with digits in their names as generated
+// names have, along with a few numbers. The size of the large files is a parameter, in megabytes, so
+// i.e. -p largeSize=512 reads files much larger than the reader's buffers. The vector file is the
+// data as the elements of one top-level vector, read whole or streamed an element at a time.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReaderBenchmark {
+
+    @Param({"4"})
+    public int largeSize;
+
+    String code;
+    String data;
+    File largeCode;
+    File largeData;
+    File largeSymbols;
+    File largeVector;
+
+    @Setup
+    public void setup() throws IOException {
+        code = Programs.source("src/main/scm/benchx.scm");
+        data = Programs.source("src/test/resources/test1.elldn");
+        largeCode = repeat(code, ".ell");
+        largeData = repeat(data, ".elldn");
+        StringBuilder symbols = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            symbols.append("(define f" + i + " (lambda (x" + i + " y" + i + " k" + i + ") (if (< x" + i + " 1.5e3) ");
+            symbols.append("(k" + i + " (g" + (i + 1) + " x" + i + " y" + i + ")) (f" + (i + 1) + " (- x" + i + " 1) y" + i + " k" + i + "))))\n");
+        }
+        largeSymbols = repeat(symbols.toString(), ".ell");
+        largeVector = repeat("[", data, "]", ".elldn");
+    }
+
+    @TearDown
+    public void teardown() {
+        largeCode.delete();
+        largeData.delete();
+        largeSymbols.delete();
+        largeVector.delete();
+    }
+
+    private File repeat(String text, String suffix) throws IOException {
+        return repeat("", text, "", suffix);
+    }
+
+    private File repeat(String open, String text, String close, String suffix) throws IOException {
+        File f = File.createTempFile("large", suffix);
+        byte [] bytes = (text + "\n").getBytes("UTF-8");
+        long size = (long)largeSize << 20;
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(open.getBytes("UTF-8"));
+            for (long n = 0; n < size; n += bytes.length)
+                out.write(bytes);
+            out.write(close.getBytes("UTF-8"));
+        }
+        return f;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+    }
+
+    int readAll(String text) {
+        LReaderChannel chan = new LReaderChannel(new StringReader(text));
+        int count = 0;
+        while (chan.read() != EOI)
+            count++;
+        return count;
+    }
+
+    int readAll(File f, Throughput throughput) {
+        var chan = open(file(f.getPath()), READ);
+        int count = 0;
+        try {
+            while (read(chan) != EOI)
+                count++;
+        } finally {
+            close(chan);
+        }
+        throughput.megabytes += f.length() / 1e6;
+        return count;
+    }
+
+    @Benchmark
+    public int readCode() {
+        return readAll(code);
+    }
+
+    @Benchmark
+    public int readData() {
+        return readAll(data);
+    }
+
+    @Benchmark
+    public int readLargeCode(Throughput throughput) {
+        return readAll(largeCode, throughput);
+    }
+
+    @Benchmark
+    public int readLargeData(Throughput throughput) {
+        return readAll(largeData, throughput);
+    }
+
+    @Benchmark
+    public int readLargeVector(Throughput throughput) {
+        var chan = open(file(largeVector.getPath()), READ);
+        int count;
+        try {
+            count = length(read(chan));
+        } finally {
+            close(chan);
+        }
+        throughput.megabytes += largeVector.length() / 1e6;
+        return count;
+    }
+
+    @Benchmark
+    public int streamLargeVector(Throughput throughput) {
+        var chan = open(file(largeVector.getPath()), READ);
+        int count = 0;
+        try {
+            for (Iterator<var> elements = elements(chan); elements.hasNext(); elements.next())
+                count++;
+        } finally {
+            close(chan);
+        }
+        throughput.megabytes += largeVector.length() / 1e6;
+        return count;
+    }
+
+    @Benchmark
+    public int readLargeSymbols(Throughput throughput) {
+        return readAll(largeSymbols, throughput);
+    }
+
+}
@@ -0,0 +1,78 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Compares the interpreter with and without the superinstruction pass (Runtime.superinstructions),
+// on programs whose inner loops are made of the fused sequences: fib is all compare-and-branch,
+// global calls and arg returns, lists walks lists with arg car/cdr and null? tests.
+//
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SuperinstructionBenchmark {
+
+    static final String FIB =
+        "(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))";
+
+    @Param({"false", "true"})
+    public boolean superinstructions;
+
+    LCode fib;
+    LCode lists;
+    LCode pi;
+    LCode benchxSort;
+    PrintStream out;
+
+    @Setup
+    public void setup() {
+        out = System.out;
+        Runtime.superinstructions = superinstructions;
+        LModule m = Programs.load("fib", Programs.forms(FIB));
+        fib = Programs.compile(m, "(fib 20)");
+        m = Programs.load("lists", Programs.forms(InterpreterBenchmark.LISTS));
+        lists = Programs.compile(m, "(len (rev (build 1000 nil) nil) 0)");
+        List<var> defs = Programs.forms(Programs.source("src/main/ell/pi.ell"));
+        defs.remove(defs.size() - 1);
+        m = Programs.load("pi", defs);
+        pi = Programs.compile(m, "(pi 1000 5)");
+        defs = Programs.forms(Programs.source("src/main/scm/benchx.scm"));
+        defs.remove(defs.size() - 1);
+        m = Programs.load("benchx", defs);
+        benchxSort = Programs.compile(m, "(sort (make-foo 10000) <)");
+        System.setOut(Programs.NULL_OUT);
+    }
+
+    @TearDown
+    public void teardown() {
+        System.setOut(out);
+        Runtime.superinstructions = true;
+    }
+
+    @Benchmark
+    public var fib() {
+        return Programs.run(fib);
+    }
+
+    @Benchmark
+    public var lists() {
+        return Programs.run(lists);
+    }
+
+    @Benchmark
+    public var pi() {
+        return Programs.run(pi);
+    }
+
+    @Benchmark
+    public var benchxSort() {
+        return Programs.run(benchxSort);
+    }
+
+}
@@ -7,7 +7,7 @@ public class Main {
         if (args.length > 0) {
             runModule(args[0], Primitives.class);
         } else {
-            println("REPL NYI. Provide a filename");
+            repl(Primitives.class);
         }
     }
 }
@@ -0,0 +1,650 @@
+package ell;
+import static ell.Runtime.*;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// A second execution engine: an AST interpreter in the style of Truffle. Compiler.compileAst turns an
+// expression into a tree of nodes, which is executed by walking it, with no bytecode in between.
+//
+// Nodes specialize themselves as they run. A call observes what it calls and rewrites its dispatch to
+// a closure call or a primitive call, and arithmetic and comparisons on numbers rewrite themselves to
+// long or double versions. A specialized node that sees something else replaces itself with the
+// generic version, for good.
+//
+// Variables live in linked Frames, like those of the LVM. Tail calls return TAIL to the nearest
+// invoke loop, so iteration does not grow the Java stack.
+//
+class Ast {
+
+    //
+    // Run a module on this engine. Used by Runtime.runModule when Runtime.astInterpreter is set.
+    //
+    public static var runModule(final String name, final Class<?> primitives) {
+        final var [] result = new var[1];
+        final RuntimeException [] failure = new RuntimeException[1];
+        //calls that are not tail calls nest on the Java stack, so give deep recursion room to run
+        Thread t = new Thread(null, new Runnable() {
+                public void run() {
+                    try {
+                        LModule module = module(name, primitives);
+                        result[0] = exec(new Compiler(module).compileAst(readModule(name)), module);
+                    } catch (RuntimeException e) {
+                        failure[0] = e;
+                    }
+                }
+            }, "ell " + name, STACK_SIZE);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            throw error("interrupted running " + name);
+        }
+        if (failure[0] != null)
+            throw failure[0];
+        return result[0];
+    }
+
+    static final long STACK_SIZE = 256L * 1024 * 1024;
+
+    public static var exec(Expr code, LModule module) {
+        Context cx = new Context();
+        cx.defs = new ArrayList<LSymbol>();
+        var result;
+        try {
+            result = code.exec(null, cx);
+        } catch (Exception e) {
+            System.err.println("*** " + e);
+            return null;
+        } catch (StackOverflowError e) {
+            System.err.println("*** stack overflow");
+            return null;
+        }
+        addExports(module, cx.defs);
+        return result;
+    }
+
+    //the state of one execution
+    static final class Context {
+        List<LSymbol> defs; //the globals defined, which the module exports
+        var tailFn; //the pending tail call, when a body returns TAIL
+        var [] tailArgs;
+    }
+
+    static final class TailCall extends var {
+        LSymbol type() { return SYM_FUNCTION; }
+        public String toString() { return "<tail call>"; }
+    }
+    static final var TAIL = new TailCall();
+
+    static abstract class Node {
+        Node parent;
+
+        <T extends Node> T adopt(T child) {
+            if (child != null)
+                child.parent = this;
+            return child;
+        }
+
+        void replaceChild(Node old, Node node) {
+            throw error("cannot replace a child of " + this);
+        }
+
+        //replace this node in the tree with a specialized one
+        <T extends Node> T replace(T node) {
+            parent.replaceChild(this, node);
+            node.parent = parent;
+            return node;
+        }
+    }
+
+    static abstract class Expr extends Node {
+        abstract var exec(Frame frame, Context cx);
+    }
+
+    static Expr [] adoptAll(Node parent, Expr [] children) {
+        for (Expr e : children)
+            parent.adopt(e);
+        return children;
+    }
+
+    static void replaceIn(Expr [] children, Node old, Node node) {
+        for (int i=0; i<children.length; i++) {
+            if (children[i] == old)
+                children[i] = (Expr)node;
+        }
+    }
+
+    //
+    // Functions and calls
+    //
+
+    static final class Function extends Node {
+        final int argc;
+        Expr body;
+        Function(int argc, Expr body) {
+            this.argc = argc;
+            this.body = adopt(body);
+        }
+        void replaceChild(Node old, Node node) {
+            if (body == old)
+                body = (Expr)node;
+        }
+        public String toString() {
+            return "<function " + argc + ">";
+        }
+    }
+
+    static final class Closure extends LFunction {
+        final Function fn;
+        final Frame env;
+        Closure(Function fn, Frame env) {
+            this.fn = fn;
+            this.env = env;
+        }
+        public String toString() {
+            return "<closure: " + fn + ">";
+        }
+    }
+
+    static var invoke(Closure c, var [] args, Context cx) {
+        while (true) {
+            if (args.length != c.fn.argc)
+                error("Wrong number of args (" + args.length + ") to " + c);
+            Frame f = new Frame();
+            f.locals = c.env;
+            f.elements = args;
+            var result = c.fn.body.exec(f, cx);
+            if (result != TAIL)
+                return result;
+            var next = cx.tailFn;
+            args = cx.tailArgs;
+            cx.tailFn = null;
+            cx.tailArgs = null;
+            if (!(next instanceof Closure))
+                return call(next, args, cx);
+            c = (Closure)next;
+        }
+    }
+
+    static var call(var fn, var [] args, Context cx) {
+        if (fn instanceof Closure)
+            return invoke((Closure)fn, args, cx);
+        if (fn instanceof LPrimitive)
+            return ((LPrimitive)fn).call(args, 0, args.length);
+        if (fn instanceof LKeyword) {
+            if (args.length != 1)
+                error("wrong number of arguments to keyword (must be 1)");
+            return get(args[0], asKeyword(fn));
+        }
+        throw error("Not a function: " + fn);
+    }
+
+    static var tailCall(var fn, var [] args, Context cx) {
+        if (fn instanceof Closure) {
+            cx.tailFn = fn;
+            cx.tailArgs = args;
+            return TAIL;
+        }
+        return call(fn, args, cx);
+    }
+
+    //the args are evaluated last to first, and then the function, the same order as in the LVM
+    static final class CallNode extends Expr {
+        Expr fn;
+        final Expr [] args;
+        Dispatch dispatch;
+        CallNode(Expr fn, Expr [] args, boolean tail) {
+            this.fn = adopt(fn);
+            this.args = adoptAll(this, args);
+            this.dispatch = adopt(new UninitializedDispatch(tail));
+        }
+        var exec(Frame frame, Context cx) {
+            var [] values = new var[args.length];
+            for (int i=args.length-1; i>=0; i--)
+                values[i] = args[i].exec(frame, cx);
+            return dispatch.call(fn.exec(frame, cx), values, cx);
+        }
+        void replaceChild(Node old, Node node) {
+            if (fn == old)
+                fn = (Expr)node;
+            else if (dispatch == old)
+                dispatch = (Dispatch)node;
+            else
+                replaceIn(args, old, node);
+        }
+    }
+
+    static abstract class Dispatch extends Node {
+        final boolean tail;
+        Dispatch(boolean tail) {
+            this.tail = tail;
+        }
+        abstract var call(var fn, var [] args, Context cx);
+        var generic(var fn, var [] args, Context cx) {
+            return replace(new GenericDispatch(tail)).call(fn, args, cx);
+        }
+    }
+
+    static final class UninitializedDispatch extends Dispatch {
+        UninitializedDispatch(boolean tail) {
+            super(tail);
+        }
+        var call(var fn, var [] args, Context cx) {
+            if (fn instanceof Closure)
+                return replace(new ClosureDispatch(tail)).call(fn, args, cx);
+            if (fn instanceof LPrimitive)
+                return replace(new PrimitiveDispatch(tail)).call(fn, args, cx);
+            return generic(fn, args, cx);
+        }
+    }
+
+    static final class ClosureDispatch extends Dispatch {
+        ClosureDispatch(boolean tail) {
+            super(tail);
+        }
+        var call(var fn, var [] args, Context cx) {
+            if (!(fn instanceof Closure))
+                return generic(fn, args, cx);
+            if (tail) {
+                cx.tailFn = fn;
+                cx.tailArgs = args;
+                return TAIL;
+            }
+            return invoke((Closure)fn, args, cx);
+        }
+    }
+
+    static final class PrimitiveDispatch extends Dispatch {
+        PrimitiveDispatch(boolean tail) {
+            super(tail);
+        }
+        var call(var fn, var [] args, Context cx) {
+            if (!(fn instanceof LPrimitive))
+                return generic(fn, args, cx);
+            return ((LPrimitive)fn).call(args, 0, args.length);
+        }
+    }
+
+    static final class GenericDispatch extends Dispatch {
+        GenericDispatch(boolean tail) {
+            super(tail);
+        }
+        var call(var fn, var [] args, Context cx) {
+            return tail? tailCall(fn, args, cx) : Ast.call(fn, args, cx);
+        }
+    }
+
+    //
+    // Variables and the special forms
+    //
+
+    static final class Literal extends Expr {
+        final var value;
+        Literal(var value) {
+            this.value = value;
+        }
+        var exec(Frame frame, Context cx) {
+            return value;
+        }
+    }
+
+    static final class LocalRef extends Expr {
+        final int depth, index;
+        LocalRef(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+        var exec(Frame frame, Context cx) {
+            for (int i=depth; i>0; i--)
+                frame = frame.locals;
+            return frame.elements[index];
+        }
+    }
+
+    static final class LocalSet extends Expr {
+        final int depth, index;
+        Expr value;
+        LocalSet(int depth, int index, Expr value) {
+            this.depth = depth;
+            this.index = index;
+            this.value = adopt(value);
+        }
+        var exec(Frame frame, Context cx) {
+            var v = value.exec(frame, cx);
+            for (int i=depth; i>0; i--)
+                frame = frame.locals;
+            frame.elements[index] = v;
+            return v;
+        }
+        void replaceChild(Node old, Node node) {
+            if (value == old)
+                value = (Expr)node;
+        }
+    }
+
+    static final class GlobalRef extends Expr {
+        final LBinding binding;
+        GlobalRef(LBinding binding) {
+            this.binding = binding;
+        }
+        var exec(Frame frame, Context cx) {
+            var v = binding.value;
+            if (v == null)
+                error("Unbound variable: " + binding.sym);
+            return v;
+        }
+    }
+
+    static final class GlobalSet extends Expr {
+        final LBinding binding;
+        final boolean define;
+        Expr value;
+        GlobalSet(LBinding binding, Expr value, boolean define) {
+            this.binding = binding;
+            this.value = adopt(value);
+            this.define = define;
+        }
+        var exec(Frame frame, Context cx) {
+            var v = value.exec(frame, cx);
+            if (define)
+                cx.defs.add(binding.sym);
+            else if (binding.value == null)
+                error("Unbound variable: " + binding.sym);
+            binding.set(v);
+            return v;
+        }
+        void replaceChild(Node old, Node node) {
+            if (value == old)
+                value = (Expr)node;
+        }
+    }
+
+    static final class If extends Expr {
+        Expr test, consequent, antecedent;
+        If(Expr test, Expr consequent, Expr antecedent) {
+            this.test = adopt(test);
+            this.consequent = adopt(consequent);
+            this.antecedent = adopt(antecedent);
+        }
+        var exec(Frame frame, Context cx) {
+            if (test.exec(frame, cx) != FALSE)
+                return consequent.exec(frame, cx);
+            return antecedent.exec(frame, cx);
+        }
+        void replaceChild(Node old, Node node) {
+            if (test == old)
+                test = (Expr)node;
+            else if (consequent == old)
+                consequent = (Expr)node;
+            else if (antecedent == old)
+                antecedent = (Expr)node;
+        }
+    }
+
+    static final class Sequence extends Expr {
+        final Expr [] exprs;
+        Sequence(Expr [] exprs) {
+            this.exprs = adoptAll(this, exprs);
+        }
+        var exec(Frame frame, Context cx) {
+            int last = exprs.length - 1;
+            for (int i=0; i<last; i++)
+                exprs[i].exec(frame, cx);
+            return exprs[last].exec(frame, cx);
+        }
+        void replaceChild(Node old, Node node) {
+            replaceIn(exprs, old, node);
+        }
+    }
+
+    static final class Lambda extends Expr {
+        final Function fn;
+        Lambda(Function fn) {
+            this.fn = adopt(fn);
+        }
+        var exec(Frame frame, Context cx) {
+            return new Closure(fn, frame);
+        }
+    }
+
+    //import the exports of another module, loaded and run on this engine
+    static final class Use extends Expr {
+        final LModule module;
+        final LSymbol name;
+        Use(LModule module, LSymbol name) {
+            this.module = module;
+            this.name = name;
+        }
+        var exec(Frame frame, Context cx) {
+            return importModule("ast", module, name.toString(), RUNNER).result;
+        }
+
+        static final ModuleRunner RUNNER = new ModuleRunner() {
+                LModule run(String name, var file, Class<?> primitives) {
+                    LModule used = Runtime.module(name, primitives);
+                    used.result = Ast.exec(new Compiler(used).compileAst(readSource(file)), used);
+                    return (used.result == null)? null : used;
+                }
+            };
+    }
+
+    //
+    // Primops: calls to builtins, inlined while the global still holds the builtin
+    //
+
+    //the value a primop calls instead, once its global no longer holds the builtin
+    static var redefined(LBinding binding) {
+        if (binding.value == null)
+            error("Unbound variable: " + binding.sym);
+        return binding.value;
+    }
+
+    static Expr primop(int opcode, LBinding binding, Expr [] args) {
+        switch (opcode) {
+        case ADD_OPCODE:
+        case SUB_OPCODE:
+        case MUL_OPCODE:
+        case EQ_OPCODE:
+        case LT_OPCODE:
+        case LE_OPCODE:
+        case GT_OPCODE:
+        case GE_OPCODE:
+            return new Arithmetic(opcode, binding, args[0], args[1]);
+        default:
+            return new Primop(opcode, binding, args);
+        }
+    }
+
+    static final class Primop extends Expr {
+        final int opcode;
+        final LBinding binding;
+        final Expr [] args;
+        Primop(int opcode, LBinding binding, Expr [] args) {
+            this.opcode = opcode;
+            this.binding = binding;
+            this.args = adoptAll(this, args);
+        }
+        var exec(Frame frame, Context cx) {
+            var [] values = new var[args.length];
+            for (int i=args.length-1; i>=0; i--)
+                values[i] = args[i].exec(frame, cx);
+            if (binding.value != binding.primitive || binding.value == null)
+                return call(redefined(binding), values, cx);
+            switch (opcode) {
+            case NULL_OPCODE:
+                return (values[0] == NIL)? TRUE : FALSE;
+            case CAR_OPCODE:
+                return car(values[0]);
+            case CDR_OPCODE:
+                return cdr(values[0]);
+            case NOT_OPCODE:
+                return (values[0] == FALSE)? TRUE : FALSE;
+            case ZERO_OPCODE:
+                return (isNumber(values[0]) && doubleValue(values[0]) == 0)? TRUE : FALSE;
+            case CONS_OPCODE:
+                return cons(values[0], values[1]);
+            case VECTOR_REF_OPCODE:
+                return vectorRef(values[0], values[1]);
+            case VECTOR_SET_OPCODE:
+                vectorSet(values[0], values[1], values[2]);
+                return NIL;
+            default:
+                throw error("Bad primop: " + opcode);
+            }
+        }
+        void replaceChild(Node old, Node node) {
+            replaceIn(args, old, node);
+        }
+    }
+
+    static final class Arithmetic extends Expr {
+        final LBinding binding;
+        Expr x, y;
+        Operation op;
+        Arithmetic(int opcode, LBinding binding, Expr x, Expr y) {
+            this.binding = binding;
+            this.x = adopt(x);
+            this.y = adopt(y);
+            this.op = adopt(new UninitializedOperation(opcode));
+        }
+        var exec(Frame frame, Context cx) {
+            var b = y.exec(frame, cx);
+            var a = x.exec(frame, cx);
+            if (binding.value != binding.primitive || binding.value == null)
+                return call(redefined(binding), new var [] {a, b}, cx);
+            return op.apply(a, b);
+        }
+        void replaceChild(Node old, Node node) {
+            if (x == old)
+                x = (Expr)node;
+            else if (y == old)
+                y = (Expr)node;
+            else if (op == old)
+                op = (Operation)node;
+        }
+    }
+
+    static abstract class Operation extends Node {
+        final int opcode;
+        Operation(int opcode) {
+            this.opcode = opcode;
+        }
+        abstract var apply(var a, var b);
+        var generic(var a, var b) {
+            return replace(new GenericOperation(opcode)).apply(a, b);
+        }
+    }
+
+    static final class UninitializedOperation extends Operation {
+        UninitializedOperation(int opcode) {
+            super(opcode);
+        }
+        var apply(var a, var b) {
+            if (a instanceof LInteger && b instanceof LInteger)
+                return replace(new LongOperation(opcode)).apply(a, b);
+            if (a instanceof LDouble && b instanceof LDouble)
+                return replace(new DoubleOperation(opcode)).apply(a, b);
+            return generic(a, b);
+        }
+    }
+
+    static final class LongOperation extends Operation {
+        LongOperation(int opcode) {
+            super(opcode);
+        }
+        var apply(var a, var b) {
+            if (!(a instanceof LInteger && b instanceof LInteger))
+                return generic(a, b);
+            long x = ((LInteger)a).value;
+            long y = ((LInteger)b).value;
+            switch (opcode) {
+            case ADD_OPCODE: {
+                long r = x + y;
+                if (((x ^ r) & (y ^ r)) < 0)
+                    return generic(a, b);
+                return number(r);
+            }
+            case SUB_OPCODE: {
+                long r = x - y;
+                if (((x ^ y) & (x ^ r)) < 0)
+                    return generic(a, b);
+                return number(r);
+            }
+            case MUL_OPCODE:
+                if (x != (int)x || y != (int)y)
+                    return generic(a, b);
+                return number(x * y);
+            case EQ_OPCODE:
+                return (x == y)? TRUE : FALSE;
+            case LT_OPCODE:
+                return (x < y)? TRUE : FALSE;
+            case LE_OPCODE:
+                return (x <= y)? TRUE : FALSE;
+            case GT_OPCODE:
+                return (x > y)? TRUE : FALSE;
+            default:
+                return (x >= y)? TRUE : FALSE;
+            }
+        }
+    }
+
+    static final class DoubleOperation extends Operation {
+        DoubleOperation(int opcode) {
+            super(opcode);
+        }
+        var apply(var a, var b) {
+            if (!(a instanceof LDouble && b instanceof LDouble))
+                return generic(a, b);
+            double x = ((LDouble)a).value;
+            double y = ((LDouble)b).value;
+            switch (opcode) {
+            case ADD_OPCODE:
+                return number(x + y);
+            case SUB_OPCODE:
+                return number(x - y);
+            case MUL_OPCODE:
+                return number(x * y);
+            case EQ_OPCODE:
+                return (x == y)? TRUE : FALSE;
+            case LT_OPCODE:
+                return (x < y)? TRUE : FALSE;
+            case LE_OPCODE:
+                return (x <= y)? TRUE : FALSE;
+            case GT_OPCODE:
+                return (x > y)? TRUE : FALSE;
+            default:
+                return (x >= y)? TRUE : FALSE;
+            }
+        }
+    }
+
+    static final class GenericOperation extends Operation {
+        GenericOperation(int opcode) {
+            super(opcode);
+        }
+        var apply(var a, var b) {
+            switch (opcode) {
+            case ADD_OPCODE:
+                return add(a, b);
+            case SUB_OPCODE:
+                return subtract(a, b);
+            case MUL_OPCODE:
+                return multiply(a, b);
+            case EQ_OPCODE:
+                return equal(a, b)? TRUE : FALSE;
+            case LT_OPCODE:
+                return (compare(a, b) < 0)? TRUE : FALSE;
+            case LE_OPCODE:
+                return (compare(a, b) <= 0)? TRUE : FALSE;
+            case GT_OPCODE:
+                return (compare(a, b) == 1)? TRUE : FALSE;
+            default: {
+                int c = compare(a, b);
+                return (c == 0 || c == 1)? TRUE : FALSE;
+            }
+            }
+        }
+    }
+
+}
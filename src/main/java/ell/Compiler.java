@@ -1,6 +1,8 @@
 package ell;
 import static ell.Runtime.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.io.File;
 
 public class Compiler {
@@ -13,18 +15,58 @@ public class Compiler {
     static final var SYM_IF = intern("if");
     static final var SYM_SET = intern("set!");
 
-    static final var SYM_CAR = intern("car");
-    static final var SYM_CDR = intern("cdr");
     static final var SYM_SET_CDR_BANG = intern("set-cdr!");
 
-    static final var SYM_NULLP = intern("null?");
-    static final var SYM_PLUS = intern("+");
-    static final var SYM_TIMES = intern("*");
-
     LModule module;
+    boolean flat; //compile flat closures, see Scope
+    Scope scope; //the function being compiled in flat mode, null at top level
 
     Compiler(LModule module) {
+        this(module, flatClosures);
+    }
+
+    Compiler(LModule module, boolean flat) {
         this.module = module;
+        this.flat = flat;
+    }
+
+    //
+    // The compile-time scope of a function in flat closure mode. The args are on the stack, and every
+    // variable of an enclosing function that is referenced becomes a free variable, copied into the
+    // closure when it is created. Either way, a reference is one indexed load, at any nesting depth.
+    //
+    private static final class Scope {
+        static final int GLOBAL = Integer.MIN_VALUE;
+        final Scope outer;
+        final HashMap<var,Integer> args = new HashMap<var,Integer>();
+        final ArrayList<var> free = new ArrayList<var>();
+        final HashMap<var,Integer> freeIndex = new HashMap<var,Integer>();
+        final HashSet<var> boxed = new HashSet<var>(); //args and free variables that hold an LBox
+        final HashSet<var> assigned = new HashSet<var>(); //the targets of set! (only kept by the register backend)
+        Scope(Scope outer, var formals) {
+            this.outer = outer;
+            int j = 0;
+            while (formals != NIL) {
+                args.put(car(formals), j++);
+                formals = cdr(formals);
+            }
+        }
+        //arg j is j, free variable k is -k-1. A variable found further out is added to the free variables
+        int resolve(var sym) {
+            Integer i = args.get(sym);
+            if (i != null)
+                return i;
+            i = freeIndex.get(sym);
+            if (i != null)
+                return -i - 1;
+            if (outer == null || outer.resolve(sym) == GLOBAL)
+                return GLOBAL;
+            if (outer.boxed.contains(sym))
+                boxed.add(sym);
+            freeIndex.put(sym, free.size());
+            free.add(sym);
+            return -free.size();
+        }
     }
 
     public var compile(var expr) {
@@ -33,23 +75,40 @@ public class Compiler {
         if (isList(expr)) {
             if (car(expr) == SYM_LAP) {
                 code.loadOps(cdr(expr));
+                if (superinstructions)
+                    code.fuse();
                 return code;
             }
         }
         compileExpr(code, env, expr, false, false);
         code.emitReturn();
+        if (superinstructions)
+            code.fuse();
+        return code;
+    }
+
+    //Compile the forms read from the channel into one thunk, as if they were in a (begin ...), but each
+    //as soon as it is read, so no list of all of them is built. One form is read ahead, since only the
+    //last one's value is kept.
+    public var compileForms(var channel) {
+        LCode code = new LCode(asModule(module), 0);
+        var expr = read(channel);
+        while (expr != EOI) {
+            if (verbose) println("; read: " + write(expr));
+            var next = read(channel);
+            compileExpr(code, NIL, expr, false, next != EOI);
+            expr = next;
+        }
+        code.emitReturn();
+        if (superinstructions)
+            code.fuse();
         return code;
     }
 
 
     private void compileExpr(LCode code, var env, var expr, boolean bTail, boolean bIgnoreResult) {
         if (isSymbol(expr)) {
-            int [] loc = {0, 0};
-            if (calculateLocation(loc, expr, env)) {
-                code.emitLocal(loc[0], loc[1]);
-            } else {
-                code.emitGlobal(expr);
-            }
+            compileRef(code, env, expr);
             if (bIgnoreResult) code.emitPop();
             else if (bTail) code.emitReturn();
         } else if (isList(expr)) {
@@ -62,13 +121,17 @@ public class Compiler {
                 if (len != 2)
                     error("Syntax error: " + expr);
                 if (!bIgnoreResult) {
-                    code.emitLiteral(cadr(lst));
+                    compileLiteral(code, cadr(lst));
                     if (bTail) code.emitReturn();
                 }
             } else if (SYM_BEGIN == fn) { //the begin special form
                 compileSequence(code, env, cdr(lst), bTail, bIgnoreResult);
 	        } else if (SYM_USE == fn) {
 				compileUse(code, lst);
+                if (!bIgnoreResult) { //a use on its own, i.e. a top-level form, is nil
+                    compileLiteral(code, NIL);
+                    if (bTail) code.emitReturn();
+                }
 	        } else if (SYM_LAP == fn) { //the lap special form -> already compiled code
                 code.loadOps(cdr(lst));
             } else if (SYM_IF == fn) {
@@ -99,17 +162,12 @@ public class Compiler {
                     error("invalid function formal argument list: " + args);
                 compileLambda(code, env, args, body, bTail, bIgnoreResult);
             } else if (SYM_SET == fn) {
-                int [] loc = {0, 0};
                 var tmp = cadr(lst);
                 if (!isSymbol(tmp))
                     error("syntax error: " + expr);
                 LSymbol sym = asSymbol(tmp);
                 compileExpr(code, env, caddr(lst), false, false);
-                if (calculateLocation(loc, sym, env)) {
-                    code.emitSetLocal(loc[0], loc[1]);
-                } else {
-                    code.emitDefGlobal(cadr(expr)); //should be setglobal
-                }
+                compileSet(code, env, sym);
                 if (bIgnoreResult) code.emitPop();
                 else if (bTail) code.emitReturn();
             } else {
@@ -117,7 +175,7 @@ public class Compiler {
             }
         } else {
             if (!bIgnoreResult) {
-                code.emitLiteral(expr);
+                compileLiteral(code, expr);
                 if (bTail)
                     code.emitReturn();
             }
@@ -142,6 +200,11 @@ public class Compiler {
         }
         var newEnv = cons(args, env);
         LCode code = new LCode(module, argc, rest);
+        if (flat) {
+            compileFlatLambda(callingCode, code, args, body, bTail, bIgnoreResult);
+            return;
+        }
+        code.stackFrame = rest == NIL && !mayCapture(body);
         compileSequence(code, newEnv, body, true, false);
         if (!bIgnoreResult) {
             callingCode.emitClosure(code);
@@ -150,44 +213,216 @@ public class Compiler {
         }
     }
 
-    private boolean compilePrimopCall(LCode code, var fn, int argc, boolean bTail, boolean bIgnoreResult) {
-        boolean b = false;
-        if (equal(SYM_CAR, fn) && argc == 1) {
-            code.emitCar();
-            b = true;
+    private void compileFlatLambda(LCode callingCode, LCode code, var args, var body, boolean bTail, boolean bIgnoreResult) {
+        Scope s = new Scope(scope, args);
+        code.stackFrame = true;
+        //an arg that is assigned and captured lives in a box shared with the closures
+        HashSet<var> assigned = new HashSet<var>();
+        HashSet<var> captured = new HashSet<var>();
+        scanAssignments(body, false, assigned, captured);
+        int j = 0;
+        for (var tmp = args; tmp != NIL; tmp = cdr(tmp), j++) {
+            var sym = car(tmp);
+            if (assigned.contains(sym) && captured.contains(sym)) {
+                s.boxed.add(sym);
+                code.emitBox(j);
+            }
         }
-        else if (equal(SYM_CDR, fn) && argc == 1) {
-            code.emitCdr();
-            b = true;
+        Scope saved = scope;
+        scope = s;
+        compileSequence(code, NIL, body, true, false);
+        scope = saved;
+        if (!bIgnoreResult) {
+            //the free variables are loaded as they are (boxes are shared, not opened), the first on top
+            for (int k = s.free.size() - 1; k >= 0; k--)
+                compileSlot(callingCode, resolve(s.free.get(k)));
+            callingCode.emitFlatClosure(code, s.free.size());
+            if (bTail)
+                callingCode.emitReturn();
         }
-        else if (equal(SYM_NULL, fn) && argc == 1) {
-            code.emitNull();
-            b = true;
+    }
+
+    //Collect the targets of set! in exprs, and the symbols used inside nested lambdas. Shadowing is
+    //ignored, which can only box a variable that did not need it.
+    private static void scanAssignments(var exprs, boolean inner, HashSet<var> assigned, HashSet<var> captured) {
+        while (isList(exprs) && exprs != NIL) {
+            var expr = car(exprs);
+            if (isSymbol(expr)) {
+                if (inner)
+                    captured.add(expr);
+            } else if (isList(expr) && expr != NIL) {
+                var fn = car(expr);
+                if (fn == SYM_FUN) {
+                    scanAssignments(cddr(expr), true, assigned, captured);
+                } else if (fn != SYM_QUOTE) {
+                    if (fn == SYM_SET && cdr(expr) != NIL)
+                        assigned.add(cadr(expr));
+                    scanAssignments(expr, inner, assigned, captured);
+                }
+            }
+            exprs = cdr(exprs);
         }
+    }
+
+    private int resolve(var sym) {
+        return (scope == null)? Scope.GLOBAL : scope.resolve(sym);
+    }
+
+    private void compileSlot(LCode code, int slot) {
+        if (slot >= 0)
+            code.emitArg(slot);
+        else
+            code.emitFree(-slot - 1);
+    }
+
+    private boolean isLocal(var sym, var env) {
+        if (flat)
+            return resolve(sym) != Scope.GLOBAL;
+        int [] loc = {0, 0};
+        return calculateLocation(loc, sym, env);
+    }
 
-        else if (equal(SYM_PLUS, fn) && argc == 2) {
-            code.emitAdd();
-            b = true;
+    private void compileRef(LCode code, var env, var sym) {
+        if (flat) {
+            int slot = resolve(sym);
+            if (slot == Scope.GLOBAL) {
+                code.emitGlobal(sym);
+            } else {
+                compileSlot(code, slot);
+                if (scope.boxed.contains(sym))
+                    code.emitUnbox();
+            }
+            return;
         }
-        else if (equal(SYM_TIMES, fn) && argc == 2) {
-            code.emitMul();
-            b = true;
+        int [] loc = {0, 0};
+        if (calculateLocation(loc, sym, env))
+            compileLocal(code, loc);
+        else
+            code.emitGlobal(sym);
+    }
+
+    private void compileSet(LCode code, var env, LSymbol sym) {
+        if (flat) {
+            int slot = resolve(sym);
+            if (slot == Scope.GLOBAL) {
+                code.emitSetGlobal(sym);
+            } else if (scope.boxed.contains(sym)) {
+                compileSlot(code, slot);
+                code.emitSetBox();
+            } else if (slot >= 0) {
+                code.emitSetArg(slot);
+            } else {
+                error("Cannot assign unboxed free variable: " + sym);
+            }
+            return;
         }
-        if (b) {
-            if (bTail)
-                code.emitReturn();
-            else if (bIgnoreResult)
-                code.emitPop();
+        int [] loc = {0, 0};
+        if (calculateLocation(loc, sym, env))
+            compileSetLocal(code, loc);
+        else
+            code.emitSetGlobal(sym);
+    }
+
+    //True if evaluating any of the exprs could create a closure, which might capture the enclosing frame.
+    //This is conservative: every lambda (and lap, which can contain closures) counts, except in quoted data.
+    private static boolean mayCapture(var exprs) {
+        while (isList(exprs) && exprs != NIL) {
+            var expr = car(exprs);
+            if (isList(expr) && expr != NIL) {
+                var fn = car(expr);
+                if (fn == SYM_FUN || fn == SYM_LAP)
+                    return true;
+                if (fn != SYM_QUOTE && mayCapture(expr))
+                    return true;
+            }
+            exprs = cdr(exprs);
         }
-        return b;
+        return false;
+    }
+
+    //In a stack-framed function, the function's own args are on the stack, and its lexical parent is
+    //the closure's frame, one level up from where calculateLocation counts.
+    private void compileLocal(LCode code, int [] loc) {
+        if (!code.stackFrame)
+            code.emitLocal(loc[0], loc[1]);
+        else if (loc[0] == 0)
+            code.emitArg(loc[1]);
+        else
+            code.emitLocal(loc[0] - 1, loc[1]);
+    }
+
+    private void compileLiteral(LCode code, var value) {
+        if (isImmediate(value))
+            code.emitInt((int)((LInteger)value).value);
+        else
+            code.emitLiteral(value);
+    }
+
+    private void compileSetLocal(LCode code, int [] loc) {
+        if (!code.stackFrame)
+            code.emitSetLocal(loc[0], loc[1]);
+        else if (loc[0] == 0)
+            code.emitSetArg(loc[1]);
+        else
+            code.emitSetLocal(loc[0] - 1, loc[1]);
+    }
+
+    //Inline a call to a builtin as a primop. Only done when fn refers to the global (not shadowed by a
+    //local variable) and the module has the builtin; the VM falls back to a call if it gets redefined.
+    private boolean compilePrimopCall(LCode code, var env, var fn, int argc, boolean bTail, boolean bIgnoreResult) {
+        if (!isSymbol(fn))
+            return false;
+        int opcode = primopFunction(fn, argc);
+        if (opcode < 0)
+            return false;
+        if (isLocal(fn, env))
+            return false;
+        if (module.binding(asSymbol(fn)).primitive == null)
+            return false;
+        code.emitPrimop(opcode);
+        if (bTail)
+            code.emitReturn();
+        else if (bIgnoreResult)
+            code.emitPop();
+        return true;
+    }
+
+    //A primop with an integer literal for its second arg takes it as an immediate operand. Only the
+    //second: the slow path calls the binding with the operands in order, so (+ 2 a) is a plain call.
+    private boolean compileImmediateCall(LCode code, var env, var fn, var args, boolean bTail, boolean bIgnoreResult) {
+        if (!isSymbol(fn) || length(args) != 2)
+            return false;
+        int opcode = immediateOpcode(primopFunction(fn, 2));
+        if (opcode < 0 || isLocal(fn, env) || module.binding(asSymbol(fn)).primitive == null)
+            return false;
+        var literal = literalValue(cadr(args));
+        if (!isImmediate(literal))
+            return false;
+        compileExpr(code, env, car(args), false, false);
+        code.emitImmediate(opcode, (int)((LInteger)literal).value);
+        if (bTail)
+            code.emitReturn();
+        else if (bIgnoreResult)
+            code.emitPop();
+        return true;
+    }
+
+    //the value of a number or quoted number, else null
+    private var literalValue(var expr) {
+        if (isList(expr) && length(expr) == 2 && car(expr) == SYM_QUOTE)
+            expr = cadr(expr);
+        return isNumber(expr)? expr : null;
     }
 
     private void compileFuncall(LCode code, var env, var fn, var args, boolean bTail, boolean bIgnoreResult) {
         int argc = length(args);
         if (argc < 0)
             error("bad funcall: (" + fn + " " + args);
+        if (compileImmediateCall(code, env, fn, args, bTail, bIgnoreResult))
+            return;
         compileArgs(code, env, args);
-        //        if (compilePrimopCall(code, fn, argc, bTail, bIgnoreResult)) return;
+        if (compilePrimopCall(code, env, fn, argc, bTail, bIgnoreResult))
+            return;
         compileExpr(code, env, fn, false, false);
         if (bTail) {
             if (false) {
@@ -244,6 +479,326 @@ public class Compiler {
         code.emitUse(sym);
 	}
 	
+    //
+    // The Ast backend: the same language, compiled to a tree of Ast nodes for the Ast interpreter
+    // instead of to LCode. Variables are always in linked frames, located as for the LVM.
+    //
+    public Ast.Expr compileAst(var expr) {
+        return astExpr(NIL, expr, false);
+    }
+
+    private Ast.Expr astExpr(var env, var expr, boolean bTail) {
+        if (isSymbol(expr)) {
+            int [] loc = {0, 0};
+            if (calculateLocation(loc, expr, env))
+                return new Ast.LocalRef(loc[0], loc[1]);
+            return new Ast.GlobalRef(module.binding(asSymbol(expr)));
+        } else if (isList(expr)) {
+            LList lst = asList(expr);
+            int len = length(lst);
+            if (len == 0)
+                error("Cannot compile empty list: " + expr);
+            var fn = car(lst);
+            if (SYM_QUOTE == fn) {
+                if (len != 2)
+                    error("Syntax error: " + expr);
+                return new Ast.Literal(cadr(lst));
+            } else if (SYM_BEGIN == fn) {
+                return astSequence(env, cdr(lst), bTail);
+            } else if (SYM_USE == fn) {
+                if (len != 2)
+                    error("bad use expression: " + expr);
+                if (!isSymbol(cadr(lst)))
+                    error("Non-symbol first argument to use: " + cadr(lst));
+                return new Ast.Use(module, asSymbol(cadr(lst)));
+            } else if (SYM_LAP == fn) {
+                throw error("lap code cannot run on the Ast interpreter: " + expr);
+            } else if (SYM_IF == fn) {
+                if (len != 3 && len != 4)
+                    error("Syntax error: " + expr);
+                var antecedent = (len == 4)? car(cdddr(lst)) : NIL;
+                return new Ast.If(astExpr(env, cadr(lst), false), astExpr(env, caddr(lst), bTail), astExpr(env, antecedent, bTail));
+            } else if (SYM_DEF == fn || SYM_SET == fn) {
+                if (len != 3 || !isSymbol(cadr(lst)))
+                    error("syntax error: " + expr);
+                LSymbol sym = asSymbol(cadr(lst));
+                Ast.Expr value = astExpr(env, caddr(lst), false);
+                int [] loc = {0, 0};
+                if (SYM_SET == fn && calculateLocation(loc, sym, env))
+                    return new Ast.LocalSet(loc[0], loc[1], value);
+                return new Ast.GlobalSet(module.binding(sym), value, SYM_DEF == fn);
+            } else if (SYM_FUN == fn) {
+                if (len < 3)
+                    error("syntax error for function: " + expr);
+                var args = cadr(lst);
+                if (args != NIL && !isList(args))
+                    error("invalid function formal argument list: " + args);
+                int argc = 0;
+                for (var tmp = args; tmp != NIL; tmp = cdr(tmp)) {
+                    if (!isSymbol(car(tmp)))
+                        error("Formal argument is not a symbol: " + car(tmp));
+                    argc++;
+                }
+                return new Ast.Lambda(new Ast.Function(argc, astSequence(cons(args, env), cddr(lst), true)));
+            } else {
+                int argc = length(cdr(lst));
+                Ast.Expr [] args = new Ast.Expr[argc];
+                int i = 0;
+                for (var tmp = cdr(lst); tmp != NIL; tmp = cdr(tmp))
+                    args[i++] = astExpr(env, car(tmp), false);
+                int opcode = isSymbol(fn)? primopFunction(fn, argc) : -1;
+                if (opcode >= 0 && !isLocal(fn, env) && module.binding(asSymbol(fn)).primitive != null)
+                    return Ast.primop(opcode, module.binding(asSymbol(fn)), args);
+                return new Ast.CallNode(astExpr(env, fn, false), args, bTail);
+            }
+        }
+        return new Ast.Literal(expr);
+    }
+
+    private Ast.Expr astSequence(var env, var exprs, boolean bTail) {
+        int n = length(exprs);
+        if (n == 0)
+            return new Ast.Literal(NIL);
+        Ast.Expr [] seq = new Ast.Expr[n];
+        for (int i=0; i<n; i++, exprs = cdr(exprs))
+            seq[i] = astExpr(env, car(exprs), bTail && i == n - 1);
+        return (n == 1)? seq[0] : new Ast.Sequence(seq);
+    }
+
+    //
+    // The register backend: the same language compiled to Registers.Code for the register machine.
+    // Variables are scoped as for flat closures (see Scope), with arg j in register j. Each expression
+    // leaves its value in a register: dst if that is >= 0, else any register, so an arg that is never
+    // assigned is read where it is. Args are evaluated last to first, as on the LVM.
+    //
+    public Registers.Code compileRegisters(var expr) {
+        Scope saved = scope;
+        scope = null;
+        Registers.Code code = new Registers.Code(module, 0);
+        regExpr(code, expr, -1, true);
+        scope = saved;
+        return code;
+    }
+
+    private int regExpr(Registers.Code code, var expr, int dst, boolean bTail) {
+        if (isSymbol(expr)) {
+            int slot = resolve(expr);
+            if (slot == Scope.GLOBAL) {
+                int d = regTarget(code, dst);
+                code.emit(Registers.GLOBAL_OPCODE, d, code.binding(expr));
+                return regResult(code, d, dst, bTail);
+            }
+            int r = regSlot(code, slot, dst);
+            if (scope.boxed.contains(expr)) {
+                int d = regTarget(code, dst);
+                code.emit(Registers.UNBOX_OPCODE, d, r);
+                r = d;
+            } else if (r == slot && dst < 0 && !bTail && scope.assigned.contains(expr)) {
+                //the arg may be assigned before the value is used, so take a copy
+                int d = code.alloc();
+                code.emit(Registers.MOVE_OPCODE, d, r);
+                r = d;
+            }
+            return regResult(code, r, dst, bTail);
+        } else if (isList(expr)) {
+            LList lst = asList(expr);
+            int len = length(lst);
+            if (len == 0)
+                error("Cannot compile empty list: " + expr);
+            var fn = car(lst);
+            if (SYM_QUOTE == fn) {
+                if (len != 2)
+                    error("Syntax error: " + expr);
+                return regLiteral(code, cadr(lst), dst, bTail);
+            } else if (SYM_BEGIN == fn) {
+                return regSequence(code, cdr(lst), dst, bTail);
+            } else if (SYM_USE == fn) {
+                if (len != 2)
+                    error("bad use expression: " + expr);
+                if (!isSymbol(cadr(lst)))
+                    error("Non-symbol first argument to use: " + cadr(lst));
+                int d = regTarget(code, dst);
+                code.emit(Registers.USE_OPCODE, d, code.constant(cadr(lst)));
+                return regResult(code, d, dst, bTail);
+            } else if (SYM_LAP == fn) {
+                throw error("lap code cannot run on the register machine: " + expr);
+            } else if (SYM_IF == fn) {
+                if (len != 3 && len != 4)
+                    error("Syntax error: " + expr);
+                var antecedent = (len == 4)? car(cdddr(lst)) : NIL;
+                int mark = code.top;
+                int test = regExpr(code, cadr(lst), -1, false);
+                code.top = mark;
+                int loc1 = code.emitJump(Registers.JUMPFALSE_OPCODE, test);
+                if (bTail) {
+                    regExpr(code, caddr(lst), -1, true);
+                    code.setJumpLocation(loc1);
+                    regExpr(code, antecedent, -1, true);
+                    return -1;
+                }
+                int d = regTarget(code, dst);
+                regExpr(code, caddr(lst), d, false);
+                int loc2 = code.emitJump(Registers.JUMP_OPCODE, 0);
+                code.setJumpLocation(loc1);
+                regExpr(code, antecedent, d, false);
+                code.setJumpLocation(loc2);
+                return d;
+            } else if (SYM_DEF == fn || SYM_SET == fn) {
+                if (len != 3 || !isSymbol(cadr(lst)))
+                    error("syntax error: " + expr);
+                var sym = cadr(lst);
+                int r = regExpr(code, caddr(lst), dst, false);
+                int slot = (SYM_DEF == fn)? Scope.GLOBAL : resolve(sym);
+                if (SYM_DEF == fn) {
+                    code.emit(Registers.DEFGLOBAL_OPCODE, r, code.binding(sym));
+                } else if (slot == Scope.GLOBAL) {
+                    code.emit(Registers.SETGLOBAL_OPCODE, r, code.binding(sym));
+                } else if (scope.boxed.contains(sym)) {
+                    int mark = code.top;
+                    code.emit(Registers.SETBOX_OPCODE, regSlot(code, slot, -1), r);
+                    code.top = mark;
+                } else if (slot >= 0) {
+                    if (r != slot)
+                        code.emit(Registers.MOVE_OPCODE, slot, r);
+                } else {
+                    error("Cannot assign unboxed free variable: " + sym);
+                }
+                return regResult(code, r, dst, bTail);
+            } else if (SYM_FUN == fn) {
+                if (len < 3)
+                    error("syntax error for function: " + expr);
+                var args = cadr(lst);
+                if (args != NIL && !isList(args))
+                    error("invalid function formal argument list: " + args);
+                return regLambda(code, args, cddr(lst), dst, bTail);
+            } else {
+                return regFuncall(code, fn, cdr(lst), dst, bTail);
+            }
+        }
+        return regLiteral(code, expr, dst, bTail);
+    }
+
+    private static int regTarget(Registers.Code code, int dst) {
+        return (dst >= 0)? dst : code.alloc();
+    }
+
+    //the value is in register r: move it to dst if there is one, and return it if in tail position
+    private static int regResult(Registers.Code code, int r, int dst, boolean bTail) {
+        if (dst >= 0 && r != dst) {
+            code.emit(Registers.MOVE_OPCODE, dst, r);
+            r = dst;
+        }
+        if (bTail)
+            code.emit(Registers.RETURN_OPCODE, r);
+        return r;
+    }
+
+    //the register holding an arg, or a register loaded with a free variable
+    private static int regSlot(Registers.Code code, int slot, int dst) {
+        if (slot >= 0)
+            return slot;
+        int d = regTarget(code, dst);
+        code.emit(Registers.FREE_OPCODE, d, -slot - 1);
+        return d;
+    }
+
+    private static int regLiteral(Registers.Code code, var value, int dst, boolean bTail) {
+        int d = regTarget(code, dst);
+        code.emit(Registers.LITERAL_OPCODE, d, code.constant(value));
+        return regResult(code, d, dst, bTail);
+    }
+
+    private int regSequence(Registers.Code code, var exprs, int dst, boolean bTail) {
+        if (exprs == NIL)
+            return regLiteral(code, NIL, dst, bTail);
+        while (cdr(exprs) != NIL) {
+            int mark = code.top;
+            regExpr(code, car(exprs), -1, false);
+            code.top = mark;
+            exprs = cdr(exprs);
+        }
+        return regExpr(code, car(exprs), dst, bTail);
+    }
+
+    private int regLambda(Registers.Code code, var args, var body, int dst, boolean bTail) {
+        int argc = 0;
+        for (var tmp = args; tmp != NIL; tmp = cdr(tmp)) {
+            if (!isSymbol(car(tmp)))
+                error("Formal argument is not a symbol: " + car(tmp));
+            argc++;
+        }
+        Registers.Code fun = new Registers.Code(module, argc);
+        Scope s = new Scope(scope, args);
+        HashSet<var> captured = new HashSet<var>();
+        scanAssignments(body, false, s.assigned, captured);
+        int j = 0;
+        for (var tmp = args; tmp != NIL; tmp = cdr(tmp), j++) {
+            var sym = car(tmp);
+            if (s.assigned.contains(sym) && captured.contains(sym)) {
+                s.boxed.add(sym);
+                fun.emit(Registers.BOX_OPCODE, j);
+            }
+        }
+        Scope saved = scope;
+        scope = s;
+        regSequence(fun, body, -1, true);
+        scope = saved;
+        //the free variables are copied as they are (boxes are shared, not opened)
+        int mark = code.top;
+        int n = s.free.size();
+        int [] regs = new int[n];
+        for (int k = 0; k < n; k++)
+            regs[k] = regSlot(code, resolve(s.free.get(k)), -1);
+        code.top = mark;
+        int d = regTarget(code, dst);
+        code.emit(Registers.CLOSURE_OPCODE, d, code.constant(fun));
+        code.ops.add(n);
+        for (int r : regs)
+            code.ops.add(r);
+        return regResult(code, d, dst, bTail);
+    }
+
+    private int regFuncall(Registers.Code code, var fn, var args, int dst, boolean bTail) {
+        int argc = length(args);
+        if (argc < 0)
+            error("bad funcall: (" + fn + " " + args);
+        var [] argv = new var[argc];
+        for (int i = 0; i < argc; i++, args = cdr(args))
+            argv[i] = car(args);
+        int opcode = isSymbol(fn)? primopFunction(fn, argc) : -1;
+        if (opcode >= 0 && resolve(fn) == Scope.GLOBAL && module.binding(asSymbol(fn)).primitive != null) {
+            int mark = code.top;
+            int [] operands = new int[argc];
+            for (int i = argc - 1; i >= 0; i--)
+                operands[i] = regExpr(code, argv[i], -1, false);
+            code.top = mark;
+            int d = regTarget(code, dst);
+            code.emit(Registers.PRIMOP1_OPCODE + argc - 1, opcode, d);
+            code.ops.add(code.binding(fn));
+            for (int r : operands)
+                code.ops.add(r);
+            return regResult(code, d, dst, bTail);
+        }
+        //the function and args go in consecutive registers at the top
+        int base = code.top;
+        for (int i = 0; i <= argc; i++)
+            code.alloc();
+        for (int i = argc - 1; i >= 0; i--)
+            regExpr(code, argv[i], base + 1 + i, false);
+        regExpr(code, fn, base, false);
+        if (bTail) {
+            code.emit(Registers.TAILCALL_OPCODE, base, argc);
+            code.top = base;
+            return -1;
+        }
+        code.emit(Registers.CALL_OPCODE, base, argc);
+        code.top = base + 1;
+        int r = regResult(code, base, dst, false);
+        if (r != base)
+            code.top = base;
+        return r;
+    }
+
     private boolean calculateLocation(int [] loc, var sym, var env) {
         int i = 0;
         while (env != NIL) {
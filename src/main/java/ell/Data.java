@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.math.BigInteger;
 
 public class Data {
     public static final String NIL_NAME = "nil";
@@ -53,6 +54,7 @@ public class Data {
         if (o1 == o2) return true;
         else if (o1 == null || o2 == null) return false;
         else if (o1.type() != o2.type()) return false; //otherwise it isn't commutative
+        else if (o1 instanceof LNumber) return compare(o1, o2) == 0; //integers and doubles compare by value
         else return o1.equals(o2);
     }
 
@@ -202,7 +204,9 @@ public class Data {
                 if (!LSymbol.isValid(name))
                     error("Invalid symbol: " + name);
                 sym = new LSymbol(name);
-                symbols.putIfAbsent(name, sym); //unusual race condition handled here
+                LSymbol prev = symbols.putIfAbsent(name, sym); //unusual race condition handled here
+                if (prev != null)
+                    sym = prev;
             }
             return sym;
         }
@@ -221,19 +225,74 @@ public class Data {
     public static LSymbol intern(String name) { return LSymbol.intern(name); }
     public static String symbolName(var sym) { return theSymbol(sym).name; }
 
-    static class LNumber extends LData {
+    //
+    // Numbers are exact integers or doubles. An LInteger holds a long, and arithmetic that overflows
+    // it promotes to an LBigInteger (which is only used for values outside the long range). Any
+    // double operand makes the result an LDouble.
+    //
+    static abstract class LNumber extends LData {
         static final String typeName = "number";
-        private final double value;
-        private LNumber(double v) { this.value = v; }
         LSymbol type() { return SYM_NUMBER; }
+        abstract int asInt();
+        abstract long asLong();
+        abstract double asDouble();
+    }
+
+    static final class LInteger extends LNumber {
+        //small integers are shared, so the common loop counters and results do not allocate
+        static final int CACHE_LOW = -128;
+        static final int CACHE_HIGH = 1024;
+        private static final LInteger [] cache = new LInteger[CACHE_HIGH - CACHE_LOW + 1];
+        static {
+            for (int i=0; i<cache.length; i++)
+                cache[i] = new LInteger(i + CACHE_LOW);
+        }
+        static boolean isCached(long n) { return n >= CACHE_LOW && n <= CACHE_HIGH; }
+        static LInteger cached(long n) { return cache[(int)n - CACHE_LOW]; }
+
+        final long value;
+        private LInteger(long v) { this.value = v; }
+        int asInt() { return (int)value; }
+        long asLong() { return value; }
+        double asDouble() { return value; }
+        public String toString() { return Long.toString(value); }
+        public int hashCode() { return (int)(value ^ (value >>> 32)); }
+        public boolean equals(Object o) {
+            return (o instanceof LInteger) && ((LInteger)o).value == value;
+        }
+    }
+
+    static final class LBigInteger extends LNumber {
+        final BigInteger value;
+        private LBigInteger(BigInteger v) { this.value = v; }
+        int asInt() { return value.intValue(); }
+        long asLong() { return value.longValue(); }
+        double asDouble() { return value.doubleValue(); }
+        public String toString() { return value.toString(); }
+        public int hashCode() { return value.hashCode(); }
+        public boolean equals(Object o) {
+            return (o instanceof LBigInteger) && ((LBigInteger)o).value.equals(value);
+        }
+    }
+
+    static final class LDouble extends LNumber {
+        //integral doubles in the same range as the LInteger cache are shared, too
+        private static final LDouble [] cache = new LDouble[LInteger.CACHE_HIGH - LInteger.CACHE_LOW + 1];
+        static {
+            for (int i=0; i<cache.length; i++)
+                cache[i] = new LDouble(i + LInteger.CACHE_LOW);
+        }
+
+        final double value;
+        private LDouble(double v) { this.value = v; }
         public String toString() {
             //FIXME
             String s = String.format("%f", value); //prevent scientific notation
             if (s.indexOf('.') >= 0) {
                 while (s.endsWith("0")) //trim trailing zeros
                     s = s.substring(0, s.length()-1);
-                if (s.endsWith(".")) //omit a trailing .
-                    s = s.substring(0, s.length()-1);
+                if (s.endsWith(".")) //keep a 0 after the ., so it reads back as a double, not an integer
+                    s = s + "0";
             }
             //Infinity? NaN?
             return s;
@@ -241,26 +300,199 @@ public class Data {
         int asInt() { return (int)value; }
         long asLong() { return (long)value; }
         double asDouble() { return value; }
-        public int hashCode() { return new Double(value).hashCode(); }
+        public int hashCode() {
+            long bits = (value == 0)? 0 : Double.doubleToLongBits(value); //0.0 and -0.0 are equal
+            return (int)(bits ^ (bits >>> 32));
+        }
         public boolean equals(Object o) {
-            if (o instanceof LNumber) {
-                if (value == ((LNumber)o).value)
-                    return true;
-            }
-            return false;
+            return (o instanceof LDouble) && ((LDouble)o).value == value;
         }
     }
 
-    public static LNumber number(Number n) { return new LNumber(n.doubleValue()); }
-    public static LNumber number(int n) { return new LNumber(n); }
-    public static LNumber number(long n) { return new LNumber(n); }
-    public static LNumber number(double n) { return new LNumber(n); }
+    public static LNumber number(Number n) {
+        if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte)
+            return number(n.longValue());
+        if (n instanceof BigInteger)
+            return number((BigInteger)n);
+        return number(n.doubleValue());
+    }
+    public static LNumber number(int n) { return number((long)n); }
+    public static LNumber number(long n) { return LInteger.isCached(n)? LInteger.cached(n) : new LInteger(n); }
+    public static LNumber number(BigInteger n) { return (n.bitLength() < 64)? number(n.longValue()) : new LBigInteger(n); }
+    public static LNumber number(double n) {
+        long l = (long)n;
+        if (l == n && LInteger.isCached(l) && (l != 0 || Double.doubleToRawLongBits(n) == 0)) //-0.0 is not shared
+            return LDouble.cache[(int)l - LInteger.CACHE_LOW];
+        return new LDouble(n);
+    }
     public static boolean isNumber(var obj) { return obj instanceof LNumber; }
+    public static boolean isInteger(var obj) { return obj instanceof LInteger || obj instanceof LBigInteger; }
     public static LNumber asNumber(var obj) { return (LNumber)obj; }
     public static LNumber theNumber(var obj) { return typeCast(obj, LNumber.class, "number"); }
-    public static int intValue(var obj) { return (int)theNumber(obj).value; }
-    public static long longValue(var obj) { return (long)theNumber(obj).value; }
-    public static double doubleValue(var obj) { return theNumber(obj).value; }
+    public static int intValue(var obj) { return theNumber(obj).asInt(); }
+    public static long longValue(var obj) { return theNumber(obj).asLong(); }
+    public static double doubleValue(var obj) { return theNumber(obj).asDouble(); }
+
+    static BigInteger bigValue(LNumber n) {
+        return (n instanceof LBigInteger)? ((LBigInteger)n).value : BigInteger.valueOf(n.asLong());
+    }
+
+    //
+    // Arithmetic. Each operation has an inline fast path for two LIntegers that does not overflow,
+    // and falls back to arithmetic() for everything else.
+    //
+    private static final int ADD = 0;
+    private static final int SUBTRACT = 1;
+    private static final int MULTIPLY = 2;
+
+    private static LNumber arithmetic(int op, var obj1, var obj2) {
+        LNumber n1 = theNumber(obj1);
+        LNumber n2 = theNumber(obj2);
+        if (n1 instanceof LDouble || n2 instanceof LDouble) {
+            double d1 = n1.asDouble(), d2 = n2.asDouble();
+            switch (op) {
+            case ADD: return number(d1 + d2);
+            case SUBTRACT: return number(d1 - d2);
+            default: return number(d1 * d2);
+            }
+        }
+        BigInteger b1 = bigValue(n1), b2 = bigValue(n2);
+        switch (op) {
+        case ADD: return number(b1.add(b2));
+        case SUBTRACT: return number(b1.subtract(b2));
+        default: return number(b1.multiply(b2));
+        }
+    }
+
+    public static LNumber add(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = ((LInteger)n2).value;
+            long r = a + b;
+            if (((a ^ r) & (b ^ r)) >= 0)
+                return number(r);
+        }
+        return arithmetic(ADD, n1, n2);
+    }
+
+    public static LNumber subtract(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = ((LInteger)n2).value;
+            long r = a - b;
+            if (((a ^ b) & (a ^ r)) >= 0)
+                return number(r);
+        }
+        return arithmetic(SUBTRACT, n1, n2);
+    }
+
+    public static LNumber multiply(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = ((LInteger)n2).value;
+            long r = a * b;
+            if (((Math.abs(a) | Math.abs(b)) >>> 31) == 0)
+                return number(r);
+            if ((b == 0 || r / b == a) && !(a == Long.MIN_VALUE && b == -1))
+                return number(r);
+        }
+        return arithmetic(MULTIPLY, n1, n2);
+    }
+
+    /** Exact if both are integers and the division is even, otherwise a double: (/ 7 2) is 3.5. Use quotient to truncate. */
+    public static LNumber divide(var obj1, var obj2) {
+        if (obj1 instanceof LInteger && obj2 instanceof LInteger) {
+            long a = ((LInteger)obj1).value, b = nonZero(((LInteger)obj2).value);
+            if (!(a == Long.MIN_VALUE && b == -1))
+                return (a % b == 0)? number(a / b) : number((double)a / b);
+        }
+        LNumber n1 = theNumber(obj1);
+        LNumber n2 = theNumber(obj2);
+        if (isInteger(n1) && isInteger(n2)) {
+            BigInteger [] qr = bigValue(n1).divideAndRemainder(nonZero(bigValue(n2)));
+            if (qr[1].signum() == 0)
+                return number(qr[0]);
+        }
+        return number(n1.asDouble() / n2.asDouble());
+    }
+
+    private static BigInteger nonZero(BigInteger n) {
+        if (n.signum() == 0)
+            throw error("divide by zero");
+        return n;
+    }
+
+    private static long nonZero(long n) {
+        if (n == 0)
+            throw error("divide by zero");
+        return n;
+    }
+
+    private static double truncate(double d) {
+        return (d < 0)? Math.ceil(d) : Math.floor(d);
+    }
+
+    public static LNumber quotient(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = nonZero(((LInteger)n2).value);
+            if (!(a == Long.MIN_VALUE && b == -1))
+                return number(a / b);
+        }
+        LNumber a = theNumber(n1), b = theNumber(n2);
+        if (a instanceof LDouble || b instanceof LDouble)
+            return number(truncate(a.asDouble() / b.asDouble()));
+        return number(bigValue(a).divide(nonZero(bigValue(b))));
+    }
+
+    /** The remainder has the sign of the dividend */
+    public static LNumber remainder(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = nonZero(((LInteger)n2).value);
+            return number(a % b);
+        }
+        LNumber a = theNumber(n1), b = theNumber(n2);
+        if (a instanceof LDouble || b instanceof LDouble)
+            return number(a.asDouble() % b.asDouble());
+        return number(bigValue(a).remainder(nonZero(bigValue(b))));
+    }
+
+    /** The modulo has the sign of the divisor */
+    public static LNumber modulo(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = nonZero(((LInteger)n2).value);
+            long r = a % b;
+            if (r != 0 && ((r ^ b) < 0))
+                r += b;
+            return number(r);
+        }
+        LNumber a = theNumber(n1), b = theNumber(n2);
+        if (a instanceof LDouble || b instanceof LDouble) {
+            double d = b.asDouble();
+            double r = a.asDouble() % d;
+            if (r != 0 && ((r < 0) != (d < 0)))
+                r += d;
+            return number(r);
+        }
+        BigInteger d = nonZero(bigValue(b));
+        BigInteger r = bigValue(a).remainder(d);
+        if (r.signum() != 0 && r.signum() != d.signum())
+            r = r.add(d);
+        return number(r);
+    }
+
+    /** Returns -1, 0, or 1 as n1 is less than, equal to, or greater than n2, and 2 if either is NaN */
+    public static int compare(var n1, var n2) {
+        if (n1 instanceof LInteger && n2 instanceof LInteger) {
+            long a = ((LInteger)n1).value, b = ((LInteger)n2).value;
+            return (a < b)? -1 : ((a == b)? 0 : 1);
+        }
+        LNumber a = theNumber(n1), b = theNumber(n2);
+        if (a instanceof LDouble || b instanceof LDouble) {
+            double d1 = a.asDouble(), d2 = b.asDouble();
+            if (d1 < d2) return -1;
+            if (d1 > d2) return 1;
+            if (d1 == d2) return 0;
+            return 2;
+        }
+        return bigValue(a).compareTo(bigValue(b));
+    }
 
     protected static class LList extends LData {
         static final String typeName = "list";
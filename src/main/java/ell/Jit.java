@@ -0,0 +1,727 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+//
+// Compiles hot LCode to JVM bytecode, so HotSpot can compile it in turn. The LVM counts calls to each
+// function, and past Runtime.jitThreshold hands it to compile(). The generated class has one method
+// that does what the ops do, with the args in JVM locals and temporaries on the JVM operand stack:
+// no dispatch, no VM stack traffic except to pass args in calls, and a self tail call is a loop.
+//
+// Only functions that keep their args on the stack and create no closures are compiled; anything
+// else (or any failure to compile) leaves the code to the interpreter. Primops are inlined behind the
+// same check the interpreter makes, and the compiled code is also thrown away (deoptimized) as soon
+// as one of the globals it inlined is assigned.
+//
+class Jit {
+
+    //the superclass of all generated code
+    static abstract class Compiled {
+        final var [] constants;
+        Compiled(var [] constants) {
+            this.constants = constants;
+        }
+        //call with the argc args at vm.stack[vm.sp], which are left for the caller to pop
+        abstract var run(LVM vm, LClosure self, int argc);
+    }
+
+    static int count;
+
+    //synchronized, so threads that make the same code hot at once compile it once, and number the classes uniquely
+    static synchronized void compile(LCode code) {
+        if (code.jit != null)
+            return;
+        try {
+            Jit jit = new Jit(code);
+            byte [] bytes = jit.generate();
+            if (bytes == null) {
+                if (verbose) println("; cannot compile " + code);
+                return;
+            }
+            Class<?> c = define(bytes);
+            code.jit = (Compiled)c.getDeclaredConstructor(var[].class).newInstance((Object)code.module.constants);
+            for (LBinding b : jit.primopBindings())
+                b.addDependent(code);
+            if (verbose) println("; compiled " + code + " to " + c.getName());
+        } catch (Throwable e) {
+            if (verbose) println("; cannot compile " + code + ": " + e);
+        }
+    }
+
+    //Define the class in this package, so it can use the package private runtime, but unnamed and
+    //unregistered in any class loader, so it is unloaded (along with the constants it holds) once the
+    //code is dropped. Hidden classes need Java 15; before that, Unsafe.defineAnonymousClass does the
+    //same. A class loader of its own would put the class in another runtime package.
+    private static Class<?> define(byte [] bytes) throws Exception {
+        try {
+            Class<?> options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Method m = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, Array.newInstance(options, 0).getClass());
+            Object lookup = m.invoke(MethodHandles.lookup(), bytes, false, Array.newInstance(options, 0));
+            return ((MethodHandles.Lookup)lookup).lookupClass();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Method m = c.getMethod("defineAnonymousClass", Class.class, byte[].class, Object[].class);
+            return (Class<?>)m.invoke(f.get(null), Jit.class, bytes, null);
+        }
+    }
+
+    //
+    // Helpers called by the generated code. Operands come first, in the order they are on the stack.
+    //
+
+    static void checkArgs(LClosure self, int argc) {
+        if (argc != self.code.argc)
+            error("Wrong number of args (" + argc + ") to " + self);
+    }
+
+    static var global(LBinding b) {
+        if (b.value == null)
+            error("Unbound variable: " + b.sym);
+        return b.value;
+    }
+
+    static var defGlobal(var val, LBinding b, LVM vm) {
+        b.set(val);
+        if (vm.defs != null)
+            vm.defs.add(b.sym);
+        return val;
+    }
+
+    static var setGlobal(var val, LBinding b) {
+        if (b.value == null)
+            error("Unbound variable: " + b.sym);
+        b.set(val);
+        return val;
+    }
+
+    static var local(LClosure self, int i, int j) {
+        Frame f = self.frame;
+        while (i-- > 0)
+            f = f.locals;
+        return f.elements[j];
+    }
+
+    static var setLocal(var val, LClosure self, int i, int j) {
+        Frame f = self.frame;
+        while (i-- > 0)
+            f = f.locals;
+        f.elements[j] = val;
+        return val;
+    }
+
+    //store v as arg j of a call, the space for which was reserved below vm.sp
+    static void arg(var v, LVM vm, int j) {
+        vm.stack[vm.sp + j] = v;
+    }
+
+    static void reserve(LVM vm, int argc) {
+        vm.ensureStack(argc);
+        vm.sp -= argc;
+    }
+
+    static boolean isBuiltin(LBinding b) {
+        return b.value == b.primitive && b.value != null;
+    }
+
+    static var call(LVM vm, LBinding b, var x) {
+        vm.ensureStack(1);
+        vm.stack[--vm.sp] = x;
+        return vm.apply(global(b), 1);
+    }
+
+    static var call(LVM vm, LBinding b, var x, var y) {
+        vm.ensureStack(2);
+        vm.stack[--vm.sp] = y;
+        vm.stack[--vm.sp] = x;
+        return vm.apply(global(b), 2);
+    }
+
+    static var call(LVM vm, LBinding b, var x, var y, var z) {
+        vm.ensureStack(3);
+        vm.stack[--vm.sp] = z;
+        vm.stack[--vm.sp] = y;
+        vm.stack[--vm.sp] = x;
+        return vm.apply(global(b), 3);
+    }
+
+    static var nullp(var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (x == NIL? TRUE : FALSE) : call(vm, b, x);
+    }
+
+    static var car(var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? Runtime.car(x) : call(vm, b, x);
+    }
+
+    static var cdr(var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? Runtime.cdr(x) : call(vm, b, x);
+    }
+
+    static var not(var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (x == FALSE? TRUE : FALSE) : call(vm, b, x);
+    }
+
+    static var zerop(var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? ((isNumber(x) && doubleValue(x) == 0)? TRUE : FALSE) : call(vm, b, x);
+    }
+
+    static var add(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? Runtime.add(x, y) : call(vm, b, x, y);
+    }
+
+    static var sub(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? subtract(x, y) : call(vm, b, x, y);
+    }
+
+    static var mul(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? multiply(x, y) : call(vm, b, x, y);
+    }
+
+    static var eq(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (equal(x, y)? TRUE : FALSE) : call(vm, b, x, y);
+    }
+
+    static var lt(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (compare(x, y) < 0? TRUE : FALSE) : call(vm, b, x, y);
+    }
+
+    static var le(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (compare(x, y) <= 0? TRUE : FALSE) : call(vm, b, x, y);
+    }
+
+    static var gt(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? (compare(x, y) == 1? TRUE : FALSE) : call(vm, b, x, y);
+    }
+
+    static var ge(var y, var x, LBinding b, LVM vm) {
+        if (!isBuiltin(b))
+            return call(vm, b, x, y);
+        int c = compare(x, y);
+        return (c == 0 || c == 1)? TRUE : FALSE;
+    }
+
+    static var cons(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? Runtime.cons(x, y) : call(vm, b, x, y);
+    }
+
+    static var vectorRef(var y, var x, LBinding b, LVM vm) {
+        return isBuiltin(b)? Runtime.vectorRef(x, y) : call(vm, b, x, y);
+    }
+
+    static var vectorSet(var z, var y, var x, LBinding b, LVM vm) {
+        if (!isBuiltin(b))
+            return call(vm, b, x, y, z);
+        Runtime.vectorSet(x, y, z);
+        return NIL;
+    }
+
+    static var immediate(var x, int opcode, int n, LBinding b, LVM vm) {
+        return isBuiltin(b)? LVM.immediatePrimop(opcode, x, n) : call(vm, b, x, number(n));
+    }
+
+    //the helper for each primop, by its index in PRIMOP_OPCODES
+    static final String [] PRIMOP_HELPERS = {
+        "nullp", "car", "cdr", "add", "mul", "sub", "eq",
+        "lt", "le", "gt", "ge", "vectorRef", "vectorSet",
+        "cons", "not", "zerop"
+    };
+
+    //
+    // The translation. Locals of the generated method: this, vm, self, argc, the constants, the args,
+    // and one temporary.
+    //
+
+    static final String VAR = "Lell/Data$var;";
+    static final String VM = "Lell/Runtime$LVM;";
+    static final String CLOSURE = "Lell/Runtime$LClosure;";
+    static final String BINDING = "Lell/Runtime$LBinding;";
+    static final String JIT = "ell/Jit";
+    static final String COMPILED = "ell/Jit$Compiled";
+
+    static final int L_VM = 1;
+    static final int L_SELF = 2;
+    static final int L_ARGC = 3;
+    static final int L_CONSTANTS = 4;
+    static final int L_ARGS = 5;
+
+    final LCode code;
+    final int [] ops;
+    final int length;
+    final int argc;
+    final int tmp;
+    final ConstantPool pool = new ConstantPool();
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final HashMap<Integer,Integer> labels = new HashMap<Integer,Integer>(); //op pc -> bytecode offset
+    final ArrayList<int[]> fixups = new ArrayList<int[]>(); //{offset of the branch, op pc of the target}
+    int [] depths; //the depth of the operand stack before each op, -1 if not reached yet
+    int maxDepth;
+    boolean inconsistent; //a jump to an op with a different stack depth
+
+    Jit(LCode code) {
+        this.code = code;
+        this.ops = code.unfused();
+        this.length = code.ops.size();
+        this.argc = code.argc;
+        this.tmp = L_ARGS + argc;
+    }
+
+    ArrayList<LBinding> primopBindings() {
+        ArrayList<LBinding> result = new ArrayList<LBinding>();
+        for (int pc = 0; pc < length; pc = next(pc)) {
+            if (primopIndex(ops[pc]) >= 0 || immediateIndex(ops[pc]) >= 0)
+                result.add((LBinding)code.module.constants[ops[pc+1]]);
+        }
+        return result;
+    }
+
+    //the pc of the op after the one at pc, or -1 if the op cannot be compiled
+    private int next(int pc) {
+        switch (ops[pc]) {
+        case RETURN_OPCODE:
+        case POP_OPCODE:
+            return pc + 1;
+        case LOCAL_OPCODE:
+        case SETLOCAL_OPCODE:
+            return pc + 3;
+        case LITERAL_OPCODE:
+        case GLOBAL_OPCODE:
+        case DEFGLOBAL_OPCODE:
+        case SETGLOBAL_OPCODE:
+        case ARG_OPCODE:
+        case SETARG_OPCODE:
+        case JUMP_OPCODE:
+        case JUMPFALSE_OPCODE:
+        case CALL_OPCODE:
+        case TAILCALL_OPCODE:
+        case INT_OPCODE:
+            return pc + 2;
+        case ADDI_OPCODE:
+        case SUBI_OPCODE:
+        case EQI_OPCODE:
+        case LTI_OPCODE:
+        case LEI_OPCODE:
+        case GTI_OPCODE:
+        case GEI_OPCODE:
+            return pc + 3;
+        default:
+            return (primopIndex(ops[pc]) >= 0)? pc + 2 : -1;
+        }
+    }
+
+    byte [] generate() throws IOException {
+        if (!code.stackFrame || argc < 0 || argc > 200)
+            return null;
+        depths = new int[length];
+        for (int pc = 0; pc < length; pc = next(pc)) {
+            if (next(pc) < 0)
+                return null;
+            depths[pc] = -1;
+        }
+        //entry: check the arity and load the args
+        emitLoad(0);
+        emit(0xb4); emitShort(pool.field(COMPILED, "constants", "[" + VAR)); //getfield
+        emitStore(L_CONSTANTS);
+        emitLoad(L_SELF);
+        emit(0x15); emit(L_ARGC); //iload
+        emitInvoke(0xb8, JIT, "checkArgs", "(" + CLOSURE + "I)V");
+        for (int j = 0; j < argc; j++) {
+            emitLoad(L_VM);
+            emit(0xb4); emitShort(pool.field("ell/Runtime$LVM", "stack", "[" + VAR));
+            emitLoad(L_VM);
+            emit(0xb4); emitShort(pool.field("ell/Runtime$LVM", "sp", "I"));
+            emitInt(j);
+            emit(0x60); //iadd
+            emit(0x32); //aaload
+            emitStore(L_ARGS + j);
+        }
+        int loop = buf.size();
+        int depth = 0;
+        for (int pc = 0; pc < length; pc = next(pc)) {
+            if (depth < 0)
+                depth = depths[pc]; //after a jump or return, only reachable as a jump target
+            else if (depths[pc] >= 0 && depths[pc] != depth)
+                return null;
+            if (depth < 0)
+                continue; //unreachable
+            depths[pc] = depth;
+            labels.put(pc, buf.size());
+            depth = translate(pc, depth, loop);
+            if (depth == -2)
+                return null;
+            if (depth > maxDepth)
+                maxDepth = depth;
+        }
+        if (depth >= 0 || inconsistent)
+            return null; //falls off the end, or the stack is unbalanced
+        byte [] bytecode = buf.toByteArray();
+        for (int [] f : fixups) {
+            Integer target = labels.get(f[1]);
+            if (target == null)
+                return null;
+            int offset = target - f[0];
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                return null;
+            bytecode[f[0] + 1] = (byte)(offset >> 8);
+            bytecode[f[0] + 2] = (byte)offset;
+        }
+        if (bytecode.length > 65535)
+            return null;
+        return classFile(bytecode);
+    }
+
+    //Emit the bytecode for the op at pc, and return the depth after it: -1 if control does not continue
+    //to the next op, -2 if the op cannot be compiled.
+    private int translate(int pc, int depth, int loop) {
+        int op = ops[pc];
+        switch (op) {
+        case LITERAL_OPCODE:
+            emitConstant(ops[pc+1]);
+            return depth + 1;
+        case INT_OPCODE:
+            emitInt(ops[pc+1]);
+            emitInvoke(0xb8, "ell/Data", "number", "(I)Lell/Data$LNumber;");
+            return depth + 1;
+        case ADDI_OPCODE:
+        case SUBI_OPCODE:
+        case EQI_OPCODE:
+        case LTI_OPCODE:
+        case LEI_OPCODE:
+        case GTI_OPCODE:
+        case GEI_OPCODE:
+            emitInt(op);
+            emitInt(ops[pc+2]);
+            emitBinding(ops[pc+1]);
+            emitLoad(L_VM);
+            emitInvoke(0xb8, JIT, "immediate", "(" + VAR + "II" + BINDING + VM + ")" + VAR);
+            return depth;
+        case GLOBAL_OPCODE:
+            emitBinding(ops[pc+1]);
+            emitInvoke(0xb8, JIT, "global", "(" + BINDING + ")" + VAR);
+            return depth + 1;
+        case DEFGLOBAL_OPCODE:
+            emitBinding(ops[pc+1]);
+            emitLoad(L_VM);
+            emitInvoke(0xb8, JIT, "defGlobal", "(" + VAR + BINDING + VM + ")" + VAR);
+            return depth;
+        case SETGLOBAL_OPCODE:
+            emitBinding(ops[pc+1]);
+            emitInvoke(0xb8, JIT, "setGlobal", "(" + VAR + BINDING + ")" + VAR);
+            return depth;
+        case ARG_OPCODE:
+            if (ops[pc+1] >= argc)
+                return -2;
+            emitLoad(L_ARGS + ops[pc+1]);
+            return depth + 1;
+        case SETARG_OPCODE:
+            if (ops[pc+1] >= argc)
+                return -2;
+            emit(0x59); //dup
+            emitStore(L_ARGS + ops[pc+1]);
+            return depth;
+        case LOCAL_OPCODE:
+            emitLoad(L_SELF);
+            emitInt(ops[pc+1]);
+            emitInt(ops[pc+2]);
+            emitInvoke(0xb8, JIT, "local", "(" + CLOSURE + "II)" + VAR);
+            return depth + 1;
+        case SETLOCAL_OPCODE:
+            emitLoad(L_SELF);
+            emitInt(ops[pc+1]);
+            emitInt(ops[pc+2]);
+            emitInvoke(0xb8, JIT, "setLocal", "(" + VAR + CLOSURE + "II)" + VAR);
+            return depth;
+        case POP_OPCODE:
+            emit(0x57); //pop
+            return depth - 1;
+        case JUMP_OPCODE:
+            emitBranch(0xa7, pc + ops[pc+1], depth); //goto
+            return -1;
+        case JUMPFALSE_OPCODE:
+            emit(0xb2); emitShort(pool.field("ell/Data", "FALSE", "Lell/Data$LBoolean;")); //getstatic
+            emitBranch(0xa5, pc + ops[pc+1], depth - 1); //if_acmpeq
+            return depth - 1;
+        case RETURN_OPCODE:
+            emit(0xb0); //areturn
+            return -1;
+        case CALL_OPCODE:
+            emitCall(ops[pc+1]);
+            return depth - ops[pc+1];
+        case TAILCALL_OPCODE: {
+            int n = ops[pc+1];
+            emitStore(tmp);
+            if (n == argc && depth == n + 1) {
+                //calling itself: rebind the args and loop
+                emitLoad(tmp);
+                emitLoad(L_SELF);
+                int branch = buf.size();
+                emit(0xa6); emitShort(0); //if_acmpne
+                for (int j = 0; j < n; j++)
+                    emitStore(L_ARGS + j);
+                int back = loop - buf.size();
+                emit(0xa7); emitShort(back); //goto
+                patch(branch, buf.size() - branch);
+            }
+            emitApply(n);
+            emit(0xb0); //areturn
+            return -1;
+        }
+        default:
+            int i = primopIndex(op);
+            if (i < 0)
+                return -2;
+            emitBinding(ops[pc+1]);
+            emitLoad(L_VM);
+            StringBuilder desc = new StringBuilder("(");
+            for (int k = 0; k < PRIMOP_ARGC[i]; k++)
+                desc.append(VAR);
+            desc.append(BINDING + VM + ")" + VAR);
+            emitInvoke(0xb8, JIT, PRIMOP_HELPERS[i], desc.toString());
+            return depth - PRIMOP_ARGC[i] + 1;
+        }
+    }
+
+    //the function is on top, its args below it, the first arg nearest the top
+    private void emitCall(int n) {
+        emitStore(tmp);
+        emitApply(n);
+    }
+
+    //move the n args from the operand stack to the VM stack, and apply the function in tmp
+    private void emitApply(int n) {
+        emitLoad(L_VM);
+        emitInt(n);
+        emitInvoke(0xb8, JIT, "reserve", "(" + VM + "I)V");
+        for (int j = 0; j < n; j++) {
+            emitLoad(L_VM);
+            emitInt(j);
+            emitInvoke(0xb8, JIT, "arg", "(" + VAR + VM + "I)V");
+        }
+        emitLoad(L_VM);
+        emitLoad(tmp);
+        emitInt(n);
+        emitInvoke(0xb6, "ell/Runtime$LVM", "apply", "(" + VAR + "I)" + VAR);
+    }
+
+    private void emitConstant(int i) {
+        emitLoad(L_CONSTANTS);
+        emitInt(i);
+        emit(0x32); //aaload
+    }
+
+    private void emitBinding(int i) {
+        emitConstant(i);
+        emit(0xc0); emitShort(pool.classRef("ell/Runtime$LBinding")); //checkcast
+    }
+
+    private void emitBranch(int opcode, int target, int depth) {
+        //a target that is not an op never gets a label, so generate fails
+        if (target >= 0 && target < length) {
+            if (depths[target] < 0)
+                depths[target] = depth;
+            else if (labels.containsKey(target) && depths[target] != depth)
+                inconsistent = true;
+        }
+        fixups.add(new int [] {buf.size(), target});
+        emit(opcode);
+        emitShort(0);
+    }
+
+    private void patch(int at, int offset) {
+        byte [] b = buf.toByteArray();
+        b[at + 1] = (byte)(offset >> 8);
+        b[at + 2] = (byte)offset;
+        buf.reset();
+        buf.write(b, 0, b.length);
+    }
+
+    private void emitInvoke(int opcode, String owner, String name, String desc) {
+        emit(opcode);
+        emitShort(pool.method(owner, name, desc));
+    }
+
+    private void emitLoad(int local) {
+        if (local <= 3) {
+            emit(0x2a + local); //aload_n
+        } else {
+            emit(0x19); //aload
+            emit(local);
+        }
+    }
+
+    private void emitStore(int local) {
+        if (local <= 3) {
+            emit(0x4b + local); //astore_n
+        } else {
+            emit(0x3a); //astore
+            emit(local);
+        }
+    }
+
+    private void emitInt(int n) {
+        if (n >= -1 && n <= 5) {
+            emit(0x03 + n); //iconst_n
+        } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+            emit(0x10); //bipush
+            emit(n);
+        } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+            emit(0x11); //sipush
+            emitShort(n);
+        } else {
+            emit(0x13); //ldc_w
+            emitShort(pool.integer(n));
+        }
+    }
+
+    private void emit(int b) {
+        buf.write(b);
+    }
+
+    private void emitShort(int s) {
+        buf.write(s >> 8);
+        buf.write(s);
+    }
+
+    //A class file for Java 5, which the JVM verifies by type inference, so no stack map frames are needed
+    private byte [] classFile(byte [] bytecode) throws IOException {
+        String name = "ell/Jit$" + code.module.name.replaceAll("[^A-Za-z0-9_]", "_") + "$" + (++count);
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef(COMPILED);
+        int init = pool.utf8("<init>");
+        int initDesc = pool.utf8("([" + VAR + ")V");
+        int superInit = pool.method(COMPILED, "<init>", "([" + VAR + ")V");
+        int run = pool.utf8("run");
+        int runDesc = pool.utf8("(" + VM + CLOSURE + "I)" + VAR);
+        int codeAttr = pool.utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        pool.write(out);
+        out.writeShort(0x31); //public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); //interfaces
+        out.writeShort(0); //fields
+        out.writeShort(2); //methods
+
+        out.writeShort(0x01); //public
+        out.writeShort(init);
+        out.writeShort(initDesc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + 6);
+        out.writeShort(2); //max stack
+        out.writeShort(2); //max locals
+        out.writeInt(6);
+        out.writeByte(0x2a); //aload_0
+        out.writeByte(0x2b); //aload_1
+        out.writeByte(0xb7); //invokespecial
+        out.writeShort(superInit);
+        out.writeByte(0xb1); //return
+        out.writeShort(0); //exceptions
+        out.writeShort(0); //attributes
+
+        out.writeShort(0x01); //public
+        out.writeShort(run);
+        out.writeShort(runDesc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + bytecode.length);
+        out.writeShort(maxDepth + 6);
+        out.writeShort(tmp + 1);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0); //attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static final class ConstantPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final HashMap<String,Integer> entries = new HashMap<String,Integer>();
+        int count = 1;
+
+        int utf8(String s) {
+            Integer i = entries.get("U" + s);
+            if (i == null) {
+                try {
+                    out.writeByte(1);
+                    out.writeUTF(s);
+                } catch (IOException e) {
+                    throw error("cannot write constant: " + e);
+                }
+                i = add("U" + s);
+            }
+            return i;
+        }
+
+        int classRef(String name) {
+            return ref("C", 7, utf8(name), -1);
+        }
+
+        int integer(int n) {
+            Integer i = entries.get("I" + n);
+            if (i == null) {
+                try {
+                    out.writeByte(3);
+                    out.writeInt(n);
+                } catch (IOException e) {
+                    throw error("cannot write constant: " + e);
+                }
+                i = add("I" + n);
+            }
+            return i;
+        }
+
+        int field(String owner, String name, String desc) {
+            return ref("F", 9, classRef(owner), ref("N", 12, utf8(name), utf8(desc)));
+        }
+
+        int method(String owner, String name, String desc) {
+            return ref("M", 10, classRef(owner), ref("N", 12, utf8(name), utf8(desc)));
+        }
+
+        private int ref(String kind, int tag, int a, int b) {
+            String key = kind + a + "." + b;
+            Integer i = entries.get(key);
+            if (i == null) {
+                try {
+                    out.writeByte(tag);
+                    out.writeShort(a);
+                    if (b >= 0)
+                        out.writeShort(b);
+                } catch (IOException e) {
+                    throw error("cannot write constant: " + e);
+                }
+                i = add(key);
+            }
+            return i;
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream dest) throws IOException {
+            dest.writeShort(count);
+            dest.write(bytes.toByteArray());
+        }
+    }
+
+}
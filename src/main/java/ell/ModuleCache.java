@@ -0,0 +1,276 @@
+package ell;
+import static ell.Runtime.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//
+// Compiled module images. With Runtime.cacheModules set, loadModule saves each module it compiles as a
+// .ellc file next to the source (foo.ell -> foo.ellc): the module's constants, the code of the module
+// thunk, and a key made of the source path, its mtime and length, and a hash of its contents, together
+// with the compiler settings that shape the code. A later load with the same key rebuilds the module
+// from the image without reading or compiling the source; any mismatch, or any failure to read or write
+// an image, just falls back to compiling.
+//
+// The constants are written in order and put back with putConstant, so they get the same indices the
+// ops refer to. Bindings are stored by name, code by its ops, and lists, vectors and maps element by
+// element, so every number keeps its type. Any other data is stored by its written notation.
+//
+class ModuleCache {
+
+    static final int MAGIC = 0x454c4c43; //"ELLC"
+    static final int VERSION = 2;
+
+    static final int NIL_TAG = 0;
+    static final int TRUE_TAG = 1;
+    static final int FALSE_TAG = 2;
+    static final int INTEGER_TAG = 3;
+    static final int DOUBLE_TAG = 4;
+    static final int STRING_TAG = 5;
+    static final int SYMBOL_TAG = 6;
+    static final int BINDING_TAG = 7;
+    static final int CODE_TAG = 8;
+    static final int DATA_TAG = 9;
+    static final int LIST_TAG = 10;
+    static final int VECTOR_TAG = 11;
+    static final int MAP_TAG = 12;
+    static final int KEYWORD_TAG = 13;
+
+    //the image for the source file
+    static File imageFile(File source) {
+        String path = source.getPath();
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar))
+            path = path.substring(0, dot);
+        return new File(path + ".ellc");
+    }
+
+    //The thunk of the module compiled from source, from its image if that is fresh, else null
+    static LCode load(String moduleName, File source, Class<?> primitives) {
+        File image = imageFile(source);
+        if (!image.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(image)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            if (!in.readUTF().equals(source.getCanonicalPath()) || in.readLong() != source.lastModified()
+                || in.readLong() != source.length())
+                return null;
+            byte [] hash = new byte[in.readUnsignedByte()];
+            in.readFully(hash);
+            if (!in.readUTF().equals(settings(primitives)) || !Arrays.equals(hash, hash(source)))
+                return null;
+            LModule module = module(moduleName, primitives);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                if (module.putConstant(readValue(in, module)) != i)
+                    return null; //two constants that are now equal, i.e. data that did not read back as it was
+            }
+            var code = readValue(in, module);
+            if (verbose) println("; loaded " + moduleName + " from " + image);
+            return (LCode)code;
+        } catch (Exception e) {
+            if (verbose) println("; cannot load " + image + ": " + e);
+            return null;
+        }
+    }
+
+    //Save the thunk compiled from source, and the constants of its module. The image is written to a
+    //temporary file and moved into place, so a concurrent load sees either the old image or the new one.
+    static void save(LCode code, File source, Class<?> primitives) {
+        File image = imageFile(source);
+        File tmp = null;
+        try {
+            byte [] hash = hash(source);
+            tmp = File.createTempFile(image.getName(), ".tmp", image.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(source.getCanonicalPath());
+                out.writeLong(source.lastModified());
+                out.writeLong(source.length());
+                out.writeByte(hash.length);
+                out.write(hash);
+                out.writeUTF(settings(primitives));
+                LModule module = code.module;
+                int n = module.constantsMap.size();
+                out.writeInt(n);
+                for (int i = 0; i < n; i++)
+                    writeValue(out, module.constants[i]);
+                writeValue(out, code);
+            }
+            Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (verbose) println("; saved " + image);
+        } catch (Exception e) {
+            if (verbose) println("; cannot save " + image + ": " + e);
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    //what else the compiled code depends on: the builtins that primops inline, and how it was compiled
+    private static String settings(Class<?> primitives) {
+        return ((primitives == null)? "" : primitives.getName()) + " flat=" + flatClosures + " fused=" + superinstructions;
+    }
+
+    private static byte [] hash(File source) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(source.toPath()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, var value) throws IOException {
+        if (value == NIL) {
+            out.writeByte(NIL_TAG);
+        } else if (value == TRUE) {
+            out.writeByte(TRUE_TAG);
+        } else if (value == FALSE) {
+            out.writeByte(FALSE_TAG);
+        } else if (value instanceof LInteger) {
+            out.writeByte(INTEGER_TAG);
+            out.writeLong(((LInteger)value).value);
+        } else if (value instanceof LDouble) {
+            out.writeByte(DOUBLE_TAG);
+            out.writeDouble(doubleValue(value));
+        } else if (isString(value)) {
+            out.writeByte(STRING_TAG);
+            writeString(out, stringValue(value));
+        } else if (isSymbol(value)) {
+            out.writeByte(SYMBOL_TAG);
+            writeString(out, asSymbol(value).name());
+        } else if (value instanceof LBinding) {
+            out.writeByte(BINDING_TAG);
+            writeString(out, ((LBinding)value).sym.name());
+        } else if (value instanceof LCode) {
+            LCode code = (LCode)value;
+            out.writeByte(CODE_TAG);
+            out.writeInt(code.argc);
+            out.writeBoolean(code.stackFrame);
+            writeValue(out, code.rest);
+            int n = code.ops.size();
+            out.writeInt(n);
+            for (int i = 0; i < n; i++)
+                out.writeInt(code.ops.getInt(i));
+        } else if (isKeyword(value)) {
+            out.writeByte(KEYWORD_TAG);
+            writeString(out, asSymbol(keywordSymbol(value)).name());
+        } else if (isList(value)) {
+            //the elements, then the tail, which is NIL unless the list is dotted
+            int n = 0;
+            var tail = value;
+            for (; isList(tail) && tail != NIL; tail = cdr(tail))
+                n++;
+            out.writeByte(LIST_TAG);
+            out.writeInt(n);
+            for (; value != tail; value = cdr(value))
+                writeValue(out, car(value));
+            writeValue(out, tail);
+        } else if (isVector(value)) {
+            LVector v = asVector(value);
+            out.writeByte(VECTOR_TAG);
+            out.writeInt(v.length());
+            for (int i = 0; i < v.length(); i++)
+                writeValue(out, v.ref(i));
+        } else if (isMap(value)) {
+            LMap m = asMap(value);
+            out.writeByte(MAP_TAG);
+            out.writeInt(m.length());
+            for (int i = 0; i < m.length(); i++) {
+                writeValue(out, m.keyRef(i));
+                writeValue(out, m.valueRef(i));
+            }
+        } else {
+            String s = stringValue(write(value));
+            var d = read(string(s));
+            if (d.getClass() != value.getClass() || !equal(d, value))
+                throw new IOException("cannot save constant: " + s);
+            out.writeByte(DATA_TAG);
+            writeString(out, s);
+        }
+    }
+
+    private static var readValue(DataInputStream in, LModule module) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case NIL_TAG:
+            return NIL;
+        case TRUE_TAG:
+            return TRUE;
+        case FALSE_TAG:
+            return FALSE;
+        case INTEGER_TAG:
+            return number(in.readLong());
+        case DOUBLE_TAG:
+            return number(in.readDouble());
+        case STRING_TAG:
+            return string(readString(in));
+        case SYMBOL_TAG:
+            return intern(readString(in));
+        case BINDING_TAG:
+            return module.binding(intern(readString(in)));
+        case CODE_TAG: {
+            int argc = in.readInt();
+            boolean stackFrame = in.readBoolean();
+            LCode code = new LCode(module, argc, readValue(in, module));
+            code.stackFrame = stackFrame;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++)
+                code.ops.add(in.readInt());
+            return code;
+        }
+        case KEYWORD_TAG:
+            return keyword(readString(in));
+        case LIST_TAG: {
+            int n = in.readInt();
+            ArrayList<var> elements = new ArrayList<var>(n);
+            for (int i = 0; i < n; i++)
+                elements.add(readValue(in, module));
+            return makeList(elements, readValue(in, module));
+        }
+        case VECTOR_TAG: {
+            var [] elements = new var[in.readInt()];
+            for (int i = 0; i < elements.length; i++)
+                elements[i] = readValue(in, module);
+            return new LVector(elements);
+        }
+        case MAP_TAG: {
+            int n = in.readInt();
+            LMap m = new LMap(Math.max(n, 4));
+            for (int i = 0; i < n; i++)
+                m.put(readValue(in, module), readValue(in, module));
+            return m;
+        }
+        case DATA_TAG:
+            return read(string(readString(in)));
+        default:
+            throw new IOException("bad tag in module image: " + tag);
+        }
+    }
+
+    //writeUTF only takes strings of up to 64K bytes
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte [] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte [] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
@@ -4,15 +4,28 @@ import java.util.HashMap;
 import java.io.IOException;
 import java.io.File;
 import java.io.Reader;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
 import java.io.StringReader;
 import java.io.Writer;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 
 public class Notation extends Data {
 
@@ -62,9 +75,17 @@ public class Notation extends Data {
             LFile f = asFile(obj);
             if (!f.exists())
                 error("file not found: " + obj);
+            FileChannel channel = null;
             try {
-                return new LReaderChannel(new FileReader(f.handle));
+                channel = FileChannel.open(f.handle.toPath(), StandardOpenOption.READ);
+                return new LMappedChannel(channel);
             } catch (Exception e) {
+                if (channel != null) {
+                    try {
+                        channel.close(); //the mapping failed, so no LMappedChannel owns it
+                    } catch (IOException ignored) {
+                    }
+                }
                 throw error("Cannot read file: " + e.getMessage());
             }
         } else {
@@ -88,10 +109,12 @@ public class Notation extends Data {
     }
 
     static LChannel readableChannel(var chan) {
-        if (isString(chan))
-            return new LReaderChannel(new StringReader(stringValue(chan)));
+        if (isString(chan)) {
+            String s = stringValue(chan);
+            return new LReaderChannel(new StringReader(s), Math.min(s.length(), 8192));
+        }
         if (isFile(chan))
-            return new LReaderChannel(new StringReader(stringValue(file_contents(asFile(chan)))));
+            return (LChannel)openReader(chan);
         if (isReadable(chan))
             return (LReaderChannel)chan;
         throw error("Cannot read from " + chan);
@@ -100,10 +123,15 @@ public class Notation extends Data {
     public static var read(var source) {
         boolean allOrNothing = isString(source);
         LChannel chan = readableChannel(source);
-        var val = chan.read();
-        if (allOrNothing && val == EOI)
-            throw error("read: unexpected end of input");
-        return val;
+        try {
+            var val = chan.read();
+            if (allOrNothing && val == EOI)
+                throw error("read: unexpected end of input");
+            return val;
+        } finally {
+            if (chan != source) //opened just for this read
+                chan.close();
+        }
     }
 
     public static void close(var channel) {
@@ -141,10 +169,38 @@ public class Notation extends Data {
         return false;
     }
 
+    //
+    // The reader scans a char buffer filled straight from the Reader. Each char is classified by a
+    // lookup in CHAR_CLASS, and atoms are sliced out of the buffer rather than copied: symbols are found
+    // in a cache by their chars, and integers are accumulated from them, so most atoms are read without
+    // making a string. A token that runs past the end of the buffer is kept (moved to the front, or the
+    // buffer grown) when it is refilled.
+    //
     public static class LReaderChannel extends LChannel {
+        static final byte WHITESPACE = 1; // space \n \r \t ,
+        static final byte DELIMITER = 2; // ()[]{}"; which end an atom, and are not part of it
+        static final byte DIGIT = 4;
+        static final byte [] CHAR_CLASS = new byte[128]; //for ASCII; any other char is a constituent of atoms
+        static {
+            for (char c : " \n\r\t,".toCharArray())
+                CHAR_CLASS[c] = WHITESPACE;
+            for (char c : "()[]{}\";".toCharArray())
+                CHAR_CLASS[c] = DELIMITER;
+            for (char c = '0'; c <= '9'; c++)
+                CHAR_CLASS[c] = DIGIT;
+        }
+
+        //Symbols recently read, direct-mapped by the hash of their name, and shared by all readers. A
+        //collision just replaces the entry. A racy read is safe, since a symbol's name is final.
+        static final int SYMBOL_CACHE_SIZE = 4096;
+        static final LSymbol [] symbolCache = new LSymbol[SYMBOL_CACHE_SIZE];
+
         Reader raw;
-        BufferedReader in;
-        int lastc;
+        char [] buf;
+        int pos; //the next char to read
+        int limit; //the end of the chars read into buf
+        int mark = -1; //the start of the token being scanned, if any, which a refill keeps
+        int atomStart, atomEnd; //the last atom scanned is buf[atomStart..atomEnd)
         final LSymbol SYM_QUOTE;
         final LSymbol SYM_QUASIQUOTE;
         final LSymbol SYM_UNQUOTE;
@@ -156,9 +212,11 @@ public class Notation extends Data {
 
         @Override public String toString() { return "<channel: " + raw + ">"; }
         public LReaderChannel(Reader in) {
+            this(in, 8192);
+        }
+        LReaderChannel(Reader in, int bufferSize) {
             this.raw = in;
-            this.in = new BufferedReader(in);
-            this.lastc = -1;
+            this.buf = new char[Math.max(bufferSize, 16)];
             SYM_QUOTE = LSymbol.intern("quote");
             SYM_QUASIQUOTE = LSymbol.intern("quasiquote");
             SYM_UNQUOTE = LSymbol.intern("unquote");
@@ -174,46 +232,70 @@ public class Notation extends Data {
 
         @Override
         public void close() {
-            if (in != null) {
+            if (raw != null) {
                 try {
-                    in.close();
+                    raw.close();
                 } catch (Exception e) {
                     error("Cannot cleanly close: " + e);
                 }
             }
         }
 
-        int getChar() {
+        //read more chars into the buffer, keeping the chars from mark on. False at the end of input
+        boolean fill() {
+            int keep = (mark >= 0)? mark : pos;
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, limit - keep);
+                limit -= keep;
+                pos -= keep;
+                if (mark >= 0)
+                    mark = 0;
+            }
+            if (buf.length - limit < 2) //room for at least a surrogate pair, which is decoded whole
+                buf = java.util.Arrays.copyOf(buf, buf.length * 2);
             try {
-                if (lastc != -1) {
-                    int c = lastc;
-                    lastc = -1;
-                    return c;
-                } else {
-                    return in.read();
-                }
+                int n;
+                do {
+                    n = readChars(buf, limit, buf.length - limit);
+                } while (n == 0);
+                if (n < 0)
+                    return false;
+                limit += n;
+                return true;
             } catch (IOException e) {
                 e.printStackTrace();
-                return -1;
+                return false;
             }
         }
 
-        void ungetChar(int n) {
-            lastc = n;
+        //read up to len chars of the input into cbuf at off, like Reader.read
+        int readChars(char [] cbuf, int off, int len) throws IOException {
+            return raw.read(cbuf, off, len);
+        }
+
+        int getChar() {
+            if (pos == limit && !fill())
+                return -1;
+            return buf[pos++];
+        }
+
+        //push back the char just read
+        void ungetChar(int c) {
+            if (c != -1)
+                pos--;
+        }
+
+        static int charClass(int c) {
+            return (c >= 0 && c < 128)? CHAR_CLASS[c] : 0;
         }
 
         final char SINGLE_QUOTE = '\'';
-        final String WHITESPACE = " \n\r\t,";
-        final String DELIMITER = "()[]{}\";";
-        final String ALPHA = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
-        final String NUMERIC = "0123456789";
-        final String ALPHANUMERIC = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
 
         @Override
         var read() {
             int c = getChar();
             while (c != -1) {
-                if (WHITESPACE.indexOf(c) >= 0) {
+                if (charClass(c) == WHITESPACE) {
                     c = getChar();
                     continue;
                 } else if (c == ';') {
@@ -248,46 +330,185 @@ public class Notation extends Data {
                 } else if (c == '#') {
                     return decodeSharp();
                 } else {
-                    var obj;
-                    String atom = decodeAtom(c);
+                    scanAtom(pos - 1);
+                    int start = atomStart, end = atomEnd;
                     boolean colon = false;
-                    if (atom.endsWith(":")) {
+                    if (buf[end - 1] == ':') {
                         colon = true;
-                        atom = atom.substring(0, atom.length()-1);
-                    } else if (atom.startsWith(":")) {
+                        end--;
+                    } else if (buf[start] == ':') {
                         colon = true;
-                        atom = atom.substring(atom.length()-1);
-                        if (atom.length() == 0) continue; //standalone colons are whitespace
-                    }
-                    try {
-                        double d = Double.parseDouble(atom);
-                        return number(d); //colons next to numbers are whitespace
-                    } catch (NumberFormatException e) {
-                    }
-                    if (colon) {
-                        if (atom.length() == 0) {
-                            c = getChar();
-                            continue; //standalone colons are whitespace
-                        }
-                        var k = keyword(LSymbol.intern(atom));
-                        return k;
+                        start++;
                     }
-                    LSymbol sym = LSymbol.intern(atom);
-                    if (true) {
-                        //hmm. This is a bit like evaluation. to avoid this, could use #t, #f, and '() like scheme does.
-                        if (sym == SYM_TRUE)
-                            return TRUE;
-                        else if (sym == SYM_FALSE)
-                            return FALSE;
-                        else if (sym == SYM_NIL || sym == SYM_NULL)
-                            return NIL;
+                    var num = decodeNumber(start, end);
+                    if (num != null)
+                        return num; //colons next to numbers are whitespace
+                    if (start == end) {
+                        c = getChar();
+                        continue; //standalone colons are whitespace
                     }
+                    LSymbol sym = intern(start, end);
+                    if (colon)
+                        return keyword(sym);
+                    //hmm. This is a bit like evaluation. to avoid this, could use #t, #f, and '() like scheme does.
+                    if (sym == SYM_TRUE)
+                        return TRUE;
+                    else if (sym == SYM_FALSE)
+                        return FALSE;
+                    else if (sym == SYM_NIL || sym == SYM_NULL)
+                        return NIL;
                     return sym;
                 }
             }
             return EOI;
         }
 
+        //Scan an atom from start, where the chars before pos are already part of it: up to whitespace
+        //(consumed), a delimiter or ';' (left to read next), or through a ':'. The atom is left in
+        //buf[atomStart..atomEnd), valid until the next char is read.
+        void scanAtom(int start) {
+            mark = start;
+            int end;
+            while (true) {
+                if (pos == limit && !fill()) {
+                    end = pos;
+                    break;
+                }
+                char c = buf[pos];
+                int cls = charClass(c);
+                if (cls == WHITESPACE) {
+                    end = pos++;
+                    break;
+                } else if (cls == DELIMITER) {
+                    end = pos;
+                    break;
+                }
+                pos++;
+                if (c == ':') {
+                    end = pos;
+                    break;
+                }
+            }
+            atomStart = mark;
+            atomEnd = end;
+            mark = -1;
+        }
+
+        //the symbol named by buf[start..end)
+        LSymbol intern(int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + buf[i];
+            int slot = (h ^ (h >>> 12)) & (SYMBOL_CACHE_SIZE - 1);
+            LSymbol sym = symbolCache[slot];
+            if (sym != null && sym.name().hashCode() == h && sameChars(sym.name(), start, end))
+                return sym;
+            sym = LSymbol.intern(new String(buf, start, end - start));
+            symbolCache[slot] = sym;
+            return sym;
+        }
+
+        boolean sameChars(String s, int start, int end) {
+            if (s.length() != end - start)
+                return false;
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i - start) != buf[i])
+                    return false;
+            }
+            return true;
+        }
+
+        //
+        // Numbers are recognized by their syntax alone, so reading a symbol never tries (and fails) to
+        // parse it. A number is [+-] followed by digits [. [digits]] or . digits, then an optional
+        // exponent e [+-] digits; or [+-] NaN or Infinity, as doubles are written. Without a . or an
+        // exponent it is an exact integer, promoted to a big integer if it does not fit a long.
+        //
+        static final double [] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        //the number buf[start..end) denotes, else null
+        var decodeNumber(int start, int end) {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+'))
+                negative = buf[i++] == '-';
+            if (i == end)
+                return null;
+            if (charClass(buf[i]) != DIGIT && buf[i] != '.') {
+                if (sameChars("NaN", i, end))
+                    return number(Double.NaN);
+                if (sameChars("Infinity", i, end))
+                    return number(negative? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+                return null;
+            }
+            long mantissa = 0;
+            int digits = 0; //the digits in the mantissa, which is exact for up to 18 of them
+            int scale = 0; //the digits after the .
+            while (i < end && charClass(buf[i]) == DIGIT) {
+                mantissa = mantissa * 10 + (buf[i++] - '0');
+                digits++;
+            }
+            if (i == end) {
+                if (digits <= 18)
+                    return number(negative? -mantissa : mantissa);
+                return number(new BigInteger(new String(buf, start, end - start)));
+            }
+            if (buf[i] == '.') {
+                i++;
+                while (i < end && charClass(buf[i]) == DIGIT) {
+                    mantissa = mantissa * 10 + (buf[i++] - '0');
+                    digits++;
+                    scale++;
+                }
+                if (digits == 0)
+                    return null; //a lone .
+            }
+            int exponent = 0;
+            if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (buf[i] == '-' || buf[i] == '+'))
+                    negativeExponent = buf[i++] == '-';
+                if (i == end)
+                    return null;
+                while (i < end && charClass(buf[i]) == DIGIT) {
+                    if (exponent < 100000)
+                        exponent = exponent * 10 + (buf[i] - '0');
+                    i++;
+                }
+                if (negativeExponent)
+                    exponent = -exponent;
+            }
+            if (i != end)
+                return null;
+            exponent -= scale;
+            //a mantissa and a power of ten that are both exact doubles give a correctly rounded product or
+            //quotient. Anything else is left to parseDouble, which the syntax above always satisfies.
+            if (digits <= 18 && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+                double d = (exponent >= 0)? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+                return number(negative? -d : d);
+            }
+            return number(Double.parseDouble(new String(buf, start, end - start)));
+        }
+
+        //the integer buf[start..end) denotes in the radix, i.e. the ff of #xff, else null
+        var decodeInteger(int start, int end, int radix) {
+            int i = start;
+            if (i < end && (buf[i] == '-' || buf[i] == '+'))
+                i++;
+            if (i == end)
+                return null;
+            for (int j = i; j < end; j++) {
+                if (Character.digit(buf[j], radix) < 0)
+                    return null;
+            }
+            BigInteger n = new BigInteger(new String(buf, i, end - i), radix);
+            return number((buf[start] == '-')? n.negate() : n);
+        }
+
         String bufToString(byte [] b) {
             try {
                 return new String(b, "UTF-8");
@@ -309,7 +530,7 @@ public class Notation extends Data {
             int c = getChar();
             if (c == '\\') {
                 //character constant
-                String token = decodeAtom(0);
+                String token = decodeAtom();
                 //FIXME: implement Character type if I want to support Scheme
                 if ("space".equals(token))
                     return string(" ");
@@ -328,22 +549,52 @@ public class Notation extends Data {
             // #; comments the next datum, independent of the lines
             //#( means vector constant for scheme
             //#u8( means a bytevector constant for scheme
-            //#e, #i, #b, #o, #d, #x are number modifiers, i.e. #x00f0 for a hex number
+            //#e, #i, #b, #o, #d, #x are number modifiers, i.e. #x00f0 for a hex number. Only the radixes are read.
             //#123=(1 2 3), then #123# is a labeling syntax, allowing to read/write circular data structures
-            String atom = decodeAtom(0);
+            String atom = decodeAtom();
             if ("t".equals(atom)) return TRUE; //scheme
             if ("f".equals(atom)) return FALSE; //scheme
+            if (atom.length() > 1) {
+                var num = null;
+                switch (atom.charAt(0)) {
+                case 'x': case 'X': num = decodeInteger(atomStart + 1, atomEnd, 16); break;
+                case 'o': case 'O': num = decodeInteger(atomStart + 1, atomEnd, 8); break;
+                case 'b': case 'B': num = decodeInteger(atomStart + 1, atomEnd, 2); break;
+                case 'd': case 'D': num = decodeNumber(atomStart + 1, atomEnd); break;
+                default: break;
+                }
+                if (num != null)
+                    return num;
+            }
             //scheme vectors are #(...)
             //#( is a lambda in clojure
             throw error("LReader: bad # entity: " + atom);
         }
 
         var decodeString() {
+            //without escapes, the string is sliced from the buffer
+            mark = pos;
+            while (pos < limit || fill()) {
+                char c = buf[pos];
+                if (c == '"') {
+                    String s = new String(buf, mark, pos++ - mark);
+                    mark = -1;
+                    return string(s);
+                } else if (c == '\\')
+                    break;
+                pos++;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(buf, mark, pos - mark);
+            mark = -1;
+            return decodeEscapedString(sb);
+        }
+
+        var decodeEscapedString(StringBuilder sb) {
             boolean escape = false;
             int n;
             char c, c2;
             char [] cbuf = new char[4];
-            StringBuilder buf = new StringBuilder();
             while ((n = getChar()) != -1) {
                 c = (char)n;
                 if (escape) {
@@ -353,25 +604,25 @@ public class Notation extends Data {
                     case '\\':
                     case '/':
                     case '"':
-                        buf.append(c);
+                        sb.append(c);
                         break;
                     case 'e':
-                        buf.append((char)27);
+                        sb.append((char)27);
                         break;
                     case 'n':
-                        buf.append('\n');
+                        sb.append('\n');
                         break;
                     case 't':
-                        buf.append('\t');
+                        sb.append('\t');
                         break;
                     case 'f':
-                        buf.append('\f');
+                        sb.append('\f');
                         break;
                     case 'b':
-                        buf.append('\b');
+                        sb.append('\b');
                         break;
                     case 'r':
-                        buf.append('\r');
+                        sb.append('\r');
                         break;
                     case 'u':
                     case 'U':
@@ -383,7 +634,7 @@ public class Notation extends Data {
                         String hex = new String(cbuf);
                         try {
                             int i = Integer.parseInt(hex, 16);
-                            buf.append((char)i);
+                            sb.append((char)i);
                         } catch (NumberFormatException e) {
                             e.printStackTrace();
                             error("Bad unicode escape: " + hex);
@@ -396,7 +647,7 @@ public class Notation extends Data {
                             c2 = (char)getChar();
                             if (c2 >= 'a' && c2 <= 'z') c2 -= (char)('a' - 'A');
                             if (c2 > '@' && c2 <= 'Z') {
-                                buf.append((char)((int)c2 - (int)'@'));
+                                sb.append((char)((int)c2 - (int)'@'));
                                 break;
                             }
                         }
@@ -415,50 +666,51 @@ public class Notation extends Data {
                     escape = true;
                 else {
                     escape = false;
-                    buf.append(c);
+                    sb.append(c);
                 }
             }
             if (n == -1)
                 return EOI;
             else
-                return string(buf.toString());
+                return string(sb.toString());
         }
 
         boolean decodeComment() {
             //to do: actually return the comment to stash in the metadata
-            int c = getChar();
-            while (c != -1) {
-                if (c == '\n')
+            while (pos < limit || fill()) {
+                if (buf[pos++] == '\n')
                     return true;
-                c = getChar();
             }
             return false;
         }
 
         boolean isWhiteSpace(int c) {
-            return WHITESPACE.indexOf((char)c) >= 0;
-        }
-        boolean isDelimiter(int c) {
-            return DELIMITER.indexOf((char)c) >= 0;
-        }
-
-        boolean isAlpha(int c) {
-            return ALPHA.indexOf((char)c) >= 0;
-        }
-
-        boolean isNumeric(int c) {
-            return NUMERIC.indexOf((char)c) >= 0;
+            return charClass(c) == WHITESPACE;
         }
 
-        boolean isAlphaNumeric(int c) {
-            return ALPHANUMERIC.indexOf((char)c) >= 0;
+        //skip whitespace and comments, and return the char after them, left to read next. -1 at the end
+        int peekChar() {
+            int c = getChar();
+            while (c != -1) {
+                if (charClass(c) == WHITESPACE) {
+                    c = getChar();
+                } else if (c == ';') {
+                    if (!decodeComment())
+                        return -1;
+                    c = getChar();
+                } else {
+                    ungetChar(c);
+                    return c;
+                }
+            }
+            return -1;
         }
 
         var decodeList() {
             var element;
             int c;
             c = getChar();
-            ArrayList<var> lst = new ArrayList<var>();
+            LList head = null, tail = null; //the list is consed up in order, as it is read
             var rest = UNDEFINED;
             while (c != -1) {
                 if (isWhiteSpace((char)c)) {
@@ -492,16 +744,22 @@ public class Notation extends Data {
                 element = read();
                 if (element == EOI) {
                     error("LReader: unterminated list");
+                } else if (tail == null) {
+                    head = tail = new LList(element, NIL);
                 } else {
-                    lst.add(element);
+                    tail.cdr = new LList(element, NIL);
+                    tail = (LList)tail.cdr;
                 }
                 c = getChar();
             }
             if (c == -1)
-                error("LReader: unterminated list: " + lst);
-            if (rest != UNDEFINED)
-                return makeList(lst, rest);
-            return makeList(lst);
+                error("LReader: unterminated list: " + ((head == null)? NIL : head));
+            if (rest == UNDEFINED)
+                rest = NIL;
+            if (head == null)
+                return rest;
+            tail.cdr = rest;
+            return head;
         }
 
         var decodeVector() {
@@ -575,24 +833,263 @@ public class Notation extends Data {
                 error("LReader: unterminated object");
             return map;
         }
-        String decodeAtom(int nFirstChar) {
-            int c;
-            int i = 0;
-            StringBuilder buf = new StringBuilder();
-            if (nFirstChar > 0)
-                buf.append((char)nFirstChar);
-            while ((c = getChar()) != -1) {
-                if (isWhiteSpace(c))
-                    break;
-                if (isDelimiter(c) || c == ';') {
-                    ungetChar(c);
-                    break;
+        //the atom that starts at the next char
+        String decodeAtom() {
+            scanAtom(pos);
+            return new String(buf, atomStart, atomEnd - atomStart);
+        }
+    }
+
+    //
+    // A file reader that maps the file into memory, a window at a time, and decodes its UTF-8 straight
+    // from the mapped bytes into the scanner's buffer. Nothing is copied on the way, and no more than a
+    // window of the file is mapped at once, so a file of any size streams through a small buffer. A
+    // channel can also read just a range of the file, which readForms uses to read it in parallel.
+    //
+    static class LMappedChannel extends LReaderChannel {
+        static final long WINDOW = 64 << 20;
+        FileChannel file;
+        long size; //the end of the range read
+        long offset; //of the window in the file
+        MappedByteBuffer window;
+        final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        boolean flushed;
+
+        LMappedChannel(FileChannel file) throws IOException {
+            this(file, 0, file.size());
+        }
+
+        LMappedChannel(FileChannel file, long start, long end) throws IOException {
+            super(null);
+            this.file = file;
+            this.size = end;
+            map(start);
+        }
+
+        @Override public String toString() { return "<channel: " + file + ">"; }
+
+        private void map(long from) throws IOException {
+            offset = from;
+            window = file.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, size - from));
+        }
+
+        @Override
+        int readChars(char [] cbuf, int off, int len) throws IOException {
+            if (flushed)
+                return -1;
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (true) {
+                boolean last = offset + window.limit() == size;
+                CoderResult result = decoder.decode(window, out, last);
+                if (last && !window.hasRemaining()) {
+                    decoder.flush(out);
+                    flushed = true;
+                }
+                int n = out.position() - off;
+                if (n > 0 || flushed)
+                    return (n > 0)? n : -1;
+                if (result.isOverflow())
+                    return 0; //no room for the next char
+                map(offset + window.position()); //the window ended in the middle of a char, or was used up
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            } catch (Exception e) {
+                error("Cannot cleanly close: " + e);
+            }
+        }
+    }
+
+    //
+    // Streaming: elements(channel) reads the opening bracket of the list, vector or map next in the
+    // channel, and returns an iterator that reads its elements one at a time, as they are asked for, so
+    // a collection of any length is processed in constant memory. The elements of a map are its keys and
+    // values, alternately. An element that is itself a large collection can be streamed in turn, with
+    // elements() instead of next(); whatever of it is left unread is skipped when the outer iterator
+    // moves on. A dotted list cannot be streamed.
+    //
+    public static LElements elements(var channel) {
+        if (!(channel instanceof LReaderChannel))
+            error("Cannot stream from " + channel);
+        return new LElements((LReaderChannel)channel);
+    }
+
+    public static class LElements implements Iterator<var> {
+        final LReaderChannel in;
+        final int close;
+        LElements inner; //the element being streamed, if any
+        boolean done;
+
+        LElements(LReaderChannel in) {
+            this.in = in;
+            int c = in.peekChar();
+            if (c == '(')
+                close = ')';
+            else if (c == '[')
+                close = ']';
+            else if (c == '{')
+                close = '}';
+            else
+                throw error((c == -1)? "LReader: nothing to stream" : "LReader: cannot stream the elements of an atom");
+            in.getChar();
+        }
+
+        public boolean hasNext() {
+            if (done)
+                return false;
+            if (inner != null) {
+                inner.skip();
+                inner = null;
+            }
+            int c = in.peekChar();
+            if (c == close) {
+                in.getChar();
+                done = true;
+                return false;
+            } else if (c == -1) {
+                error("LReader: unterminated " + ((close == ')')? "list" : (close == ']')? "vector" : "object"));
+            } else if (c == ')' || c == ']' || c == '}') {
+                error("LReader: unexpected '" + (char)c + "'");
+            }
+            return true;
+        }
+
+        public var next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return in.read();
+        }
+
+        /** Stream the next element, which must be a list, vector or map, instead of reading it whole */
+        public LElements elements() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            inner = new LElements(in);
+            return inner;
+        }
+
+        void skip() {
+            while (hasNext())
+                in.read();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    //
+    // Parallel reading of a file of many independent top-level forms. A quick pass over its bytes, which
+    // only follows brackets, strings and comments, splits it at whitespace between top-level forms into
+    // a few chunks per thread. The chunks are read on a fork-join pool, each through a mapped channel of
+    // its own, and their forms are put back in file order. All the delimiters are ASCII, so the pass
+    // need not decode the UTF-8.
+    //
+    static final long MIN_CHUNK = 1 << 20;
+
+    /** All the top-level forms of the file, as a list, read by up to parallelism threads at once (at least one) */
+    public static var readForms(var file, int parallelism) {
+        parallelism = Math.min(Math.max(parallelism, 1), 0x7fff); //the limits of a ForkJoinPool
+        LFile f = asFile(file);
+        if (!f.exists())
+            error("file not found: " + file);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (final FileChannel channel = FileChannel.open(f.handle.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long [] bounds = splitForms(channel, size, Math.max(size / (parallelism * 4L), MIN_CHUNK));
+            List<Callable<ArrayList<var>>> chunks = new ArrayList<Callable<ArrayList<var>>>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                final long start = bounds[i], end = bounds[i + 1];
+                chunks.add(new Callable<ArrayList<var>>() {
+                        public ArrayList<var> call() throws IOException {
+                            return readChunk(channel, start, end);
+                        }
+                    });
+            }
+            ArrayList<var> forms = new ArrayList<var>();
+            for (Future<ArrayList<var>> chunk : pool.invokeAll(chunks))
+                forms.addAll(chunk.get());
+            return makeList(forms);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof error)
+                throw (error)e.getCause();
+            throw error("Cannot read file: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw error("Interrupted reading file: " + file);
+        } catch (IOException e) {
+            throw error("Cannot read file: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static var readForms(var file) {
+        return readForms(file, java.lang.Runtime.getRuntime().availableProcessors());
+    }
+
+    private static ArrayList<var> readChunk(FileChannel channel, long start, long end) throws IOException {
+        LReaderChannel in = new LMappedChannel(channel, start, end); //not closed, that would close the file
+        ArrayList<var> forms = new ArrayList<var>();
+        for (var form = in.read(); form != EOI; form = in.read())
+            forms.add(form);
+        return forms;
+    }
+
+    //The offsets that split the file into chunks of whole top-level forms, the first at least chunk
+    //bytes long, from 0 to size. A split is at whitespace outside any form, unless it follows a quote.
+    static long [] splitForms(FileChannel channel, long size, long chunk) throws IOException {
+        ArrayList<Long> bounds = new ArrayList<Long>();
+        bounds.add(0L);
+        int depth = 0;
+        boolean string = false, escape = false, comment = false;
+        byte last = 0; //the last byte that was not whitespace or in a comment
+        long next = chunk;
+        for (long from = 0; from < size; from += LMappedChannel.WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(LMappedChannel.WINDOW, size - from));
+            int n = window.limit();
+            for (int i = 0; i < n; i++) {
+                byte b = window.get(i);
+                if (string) {
+                    if (escape)
+                        escape = false;
+                    else if (b == '\\')
+                        escape = true;
+                    else if (b == '"')
+                        string = false;
+                } else if (comment) {
+                    if (b == '\n')
+                        comment = false;
+                    continue;
+                } else if (b < 128 && b >= 0 && LReaderChannel.CHAR_CLASS[b] == LReaderChannel.WHITESPACE) {
+                    if (depth == 0 && from + i >= next && last != '\'') {
+                        bounds.add(from + i);
+                        next = from + i + chunk;
+                    }
+                    continue;
+                } else if (b == '"') {
+                    string = true;
+                } else if (b == ';') {
+                    comment = true;
+                    continue;
+                } else if (b == '(' || b == '[' || b == '{') {
+                    depth++;
+                } else if (b == ')' || b == ']' || b == '}') {
+                    if (depth > 0) //else the reader reports it
+                        depth--;
                 }
-                buf.append((char)c);
-                if (c == ':') break;
+                last = b;
             }
-            return buf.toString();
         }
+        bounds.add(size);
+        long [] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = bounds.get(i);
+        return result;
     }
 
     public static class LWriterChannel extends LChannel {
@@ -38,56 +38,59 @@ public class Primitives extends Runtime {
         return result;
     }
     public var primitive_quotient(var obj1, var obj2) {
-        return number(longValue(obj1) / longValue(obj2));
+        return quotient(obj1, obj2);
     }
     public var primitive_modulo(var n1, var n2) {
-        //FIX: this is actually the remainder, not modulo
-        //return number(longValue(n1) % longValue(n2));
-        return number(doubleValue(n1) % doubleValue(n2));
+        return modulo(n1, n2);
     }
     public var primitive_remainder(var n1, var n2) {
-        return number(longValue(n1) % longValue(n2));
+        return remainder(n1, n2);
     }
     public var primop_plus(var [] s, int sp, int argc) {
-        double n = 0;
+        if (argc == 0)
+            return number(0);
         int end = sp + argc;
+        var n = theNumber(s[sp++]);
         while (sp < end)
-            n += doubleValue(s[sp++]);
-        return number(n);
+            n = add(n, s[sp++]);
+        return n;
     }
     public var operator_minus(var n1, var n2) {
-        return number(longValue(n1) - longValue(n2));
+        return subtract(n1, n2);
     }
     public var primop_multiply(var [] s, int sp, int argc) {
-        double n = 1;
+        if (argc == 0)
+            return number(1);
         int end = sp + argc;
+        var n = theNumber(s[sp++]);
         while (sp < end)
-            n *= doubleValue(s[sp++]);
-        return number(n);
+            n = multiply(n, s[sp++]);
+        return n;
     }
     public var primitive_mul(var obj1, var obj2) {
-        return number(doubleValue(obj1) * doubleValue(obj2));
+        return multiply(obj1, obj2);
     }
     public var operator_divide(var n1, var n2) {
-        return number(longValue(n1) / longValue(n2));
+        return divide(n1, n2);
     }
     public var primitive_div(var obj1, var obj2) {
         return number(doubleValue(obj1) / doubleValue(obj2));
     }
     public var operator_lt(var obj1, var obj2) {
-        return (doubleValue(obj1) < doubleValue(obj2))? TRUE : FALSE;
+        return (compare(obj1, obj2) < 0)? TRUE : FALSE;
     }
     public var operator_le(var obj1, var obj2) {
-        return (doubleValue(obj1) <= doubleValue(obj2))? TRUE : FALSE;
+        return (compare(obj1, obj2) <= 0)? TRUE : FALSE;
     }
     public var operator_eq(var obj1, var obj2) {
         return equal(obj1, obj2)? TRUE : FALSE;
     }
     public var operator_ge(var obj1, var obj2) {
-        return (doubleValue(obj1) >= doubleValue(obj2))? TRUE : FALSE;
+        int c = compare(obj1, obj2);
+        return (c == 0 || c == 1)? TRUE : FALSE;
     }
     public var operator_gt(var obj1, var obj2) {
-        return (doubleValue(obj1) > doubleValue(obj2))? TRUE : FALSE;
+        return (compare(obj1, obj2) == 1)? TRUE : FALSE;
     }
     public var primitive_identical_p(var obj1, var obj2) {
         return bool(obj1 == obj2);
@@ -0,0 +1,463 @@
+package ell;
+import static ell.Runtime.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//
+// A register machine: the alternative to the LVM's stack machine. Compiler.compileRegisters gives each
+// function a fixed number of registers, a window on one shared register file, with the args first and
+// the temporaries after them. Instructions name the registers they read and write. A reference to an
+// arg needs no instruction of its own, and a primop reads its operands where they are and writes its
+// result where it is wanted, with nothing pushed or popped.
+//
+// A call puts the function and its args in consecutive registers at the top of the caller's window,
+// and the callee's window starts at the first of the args, so they are passed without copying. Closures
+// are flat, as with Runtime.flatClosures: each copies the values of its free variables, and a variable
+// that is both assigned and captured lives in a box.
+//
+class Registers {
+
+    static final int MOVE_OPCODE = 1; //d s: r[d] = r[s]
+    static final int LITERAL_OPCODE = 2; //d k: r[d] = constant k
+    static final int GLOBAL_OPCODE = 3; //d k: r[d] = the value of binding k
+    static final int DEFGLOBAL_OPCODE = 4; //s k
+    static final int SETGLOBAL_OPCODE = 5; //s k
+    static final int FREE_OPCODE = 6; //d k: r[d] = free variable k of the closure
+    static final int BOX_OPCODE = 7; //d: r[d] = a box holding r[d]
+    static final int UNBOX_OPCODE = 8; //d s: r[d] = the value in the box r[s]
+    static final int SETBOX_OPCODE = 9; //b s: the value in the box r[b] = r[s]
+    static final int CLOSURE_OPCODE = 10; //d k n s1..sn: r[d] = a closure of code k over r[s1]..r[sn]
+    static final int JUMP_OPCODE = 11; //offset
+    static final int JUMPFALSE_OPCODE = 12; //s offset
+    static final int CALL_OPCODE = 13; //f n: r[f] = r[f](r[f+1]..r[f+n])
+    static final int TAILCALL_OPCODE = 14; //f n
+    static final int RETURN_OPCODE = 15; //s
+    static final int USE_OPCODE = 16; //d k: r[d] = the result of loading module k
+    static final int PRIMOP1_OPCODE = 17; //op d b a: r[d] = op(r[a]), while binding b holds the builtin
+    static final int PRIMOP2_OPCODE = 18; //op d b a1 a2
+    static final int PRIMOP3_OPCODE = 19; //op d b a1 a2 a3
+
+    static final String [] NAMES = {
+        null, "move", "literal", "global", "defglobal", "setglobal", "free", "box", "unbox", "setbox",
+        "closure", "jump", "jumpfalse", "call", "tailcall", "return", "use", "primop", "primop", "primop"
+    };
+
+    //
+    // Run a module on the register machine. Used by Runtime.runModule when Runtime.registerMachine is set.
+    //
+    public static var runModule(String name, Class<?> primitives) {
+        LModule module = module(name, primitives);
+        return exec(new Compiler(module).compileRegisters(readModule(name)), module);
+    }
+
+    public static var exec(Code code, LModule module) {
+        Machine m = new Machine();
+        m.defs = new ArrayList<LSymbol>();
+        var result = m.exec(code);
+        addExports(module, m.defs);
+        return result;
+    }
+
+    static final class Code extends LFunction {
+        final LModule module;
+        final int argc;
+        final IntVector ops = new IntVector(64);
+        int size; //the number of registers in the window
+        int top; //while compiling: the first free register
+        Code(LModule module, int argc) {
+            this.module = module;
+            this.argc = argc;
+            this.top = argc;
+            this.size = argc;
+        }
+
+        //a new temporary register
+        int alloc() {
+            if (++top > size)
+                size = top;
+            return top - 1;
+        }
+
+        Code emit(int op) {
+            ops.add(op);
+            return this;
+        }
+        Code emit(int op, int a) {
+            ops.add(op);
+            ops.add(a);
+            return this;
+        }
+        Code emit(int op, int a, int b) {
+            ops.add(op);
+            ops.add(a);
+            ops.add(b);
+            return this;
+        }
+        int constant(var obj) {
+            return module.putConstant(obj);
+        }
+        int binding(var sym) {
+            return module.putConstant(module.binding(asSymbol(sym)));
+        }
+        //emit a jump to be fixed up by setJumpLocation, and return its location
+        int emitJump(int op, int s) {
+            int loc = ops.size();
+            ops.add(op);
+            if (op == JUMPFALSE_OPCODE)
+                ops.add(s);
+            ops.add(0);
+            return loc;
+        }
+        //offsets are from the jump instruction, as for the LVM
+        void setJumpLocation(int loc) {
+            int offset = (ops.getInt(loc) == JUMP_OPCODE)? loc + 1 : loc + 2;
+            ops.setInt(offset, ops.size() - loc);
+        }
+
+        static int length(int [] ops, int pc) {
+            switch (ops[pc]) {
+            case BOX_OPCODE:
+            case JUMP_OPCODE:
+            case RETURN_OPCODE:
+                return 2;
+            case CLOSURE_OPCODE:
+                return 4 + ops[pc+3];
+            case PRIMOP1_OPCODE:
+                return 5;
+            case PRIMOP2_OPCODE:
+                return 6;
+            case PRIMOP3_OPCODE:
+                return 7;
+            default:
+                return 3;
+            }
+        }
+
+        public String decompile() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("(function " + argc + " " + size);
+            int [] code = ops.elements;
+            for (int pc = 0; pc < ops.size(); pc += length(code, pc)) {
+                int op = code[pc];
+                sb.append(" (" + NAMES[op]);
+                switch (op) {
+                case LITERAL_OPCODE:
+                    sb.append(" " + code[pc+1] + " " + write(module.getConstant(code[pc+2])));
+                    break;
+                case GLOBAL_OPCODE:
+                case DEFGLOBAL_OPCODE:
+                case SETGLOBAL_OPCODE:
+                case USE_OPCODE:
+                    sb.append(" " + code[pc+1] + " " + module.getConstant(code[pc+2]));
+                    break;
+                case CLOSURE_OPCODE:
+                    sb.append(" " + code[pc+1] + " " + ((Code)module.getConstant(code[pc+2])).decompile());
+                    for (int i = 0; i < code[pc+3]; i++)
+                        sb.append(" " + code[pc+4+i]);
+                    break;
+                case PRIMOP1_OPCODE:
+                case PRIMOP2_OPCODE:
+                case PRIMOP3_OPCODE:
+                    sb.append(" " + PRIMOP_INSTRUCTIONS[primopIndex(code[pc+1])] + " " + code[pc+2]);
+                    for (int i = 4; i < length(code, pc); i++)
+                        sb.append(" " + code[pc+i]);
+                    break;
+                default:
+                    for (int i = 1; i < length(code, pc); i++)
+                        sb.append(" " + code[pc+i]);
+                }
+                sb.append(")");
+            }
+            sb.append(")");
+            return sb.toString();
+        }
+
+        public String toString() {
+            return "<function/" + argc + ">";
+        }
+    }
+
+    static final class Closure extends LFunction {
+        final Code code;
+        final var [] free;
+        Closure(Code code, var [] free) {
+            this.code = code;
+            this.free = free;
+        }
+        public String toString() {
+            return "<closure: " + code + ">";
+        }
+    }
+
+    static final class Machine {
+
+        var [] regs = new var[Math.min(initialStack, maxStack)]; //the register file. The current window starts at bp
+        int bp;
+        Code code; //the current function
+        Closure closure; //and its closure, null at top level
+        int [] ops;
+        int pc;
+        var [] constants;
+
+        //the control stack: the caller state saved by each non-tail call, and where its result goes
+        int csp;
+        int [] retPc = new int[32];
+        Code [] retCode = new Code[32];
+        Closure [] retClosure = new Closure[32];
+        int [] retBp = new int[32];
+        int [] retDst = new int[32];
+
+        List<LSymbol> defs;
+
+        var exec(Code top) {
+            csp = 0;
+            closure = null;
+            enter(top, 1, 0);
+            try {
+                return run();
+            } catch (Exception e) {
+                System.err.println("*** " + e);
+                return null;
+            }
+        }
+
+        private void enter(Code c, int base, int argc) {
+            if (argc != c.argc)
+                error("Wrong number of args (" + argc + ") to " + c);
+            bp = base;
+            ensureRegisters(bp + c.size + 1);
+            code = c;
+            ops = c.ops.elements;
+            constants = c.module.constants;
+            pc = 0;
+        }
+
+        private void enter(Closure f, int base, int argc) {
+            enter(f.code, base, argc);
+            closure = f;
+        }
+
+        //the register file grows like the LVM stack, up to maxStack
+        private void ensureRegisters(int n) {
+            if (n > regs.length) {
+                if (n > maxStack)
+                    error("Stack overflow");
+                regs = Arrays.copyOf(regs, (int)Math.min(Math.max(regs.length * 2L, n), maxStack));
+            }
+        }
+
+        private void pushFrame(int next, int dst) {
+            if (csp == retPc.length) {
+                if (csp >= maxStack)
+                    error("Stack overflow");
+                int n = csp * 2;
+                retPc = Arrays.copyOf(retPc, n);
+                retCode = Arrays.copyOf(retCode, n);
+                retClosure = Arrays.copyOf(retClosure, n);
+                retBp = Arrays.copyOf(retBp, n);
+                retDst = Arrays.copyOf(retDst, n);
+            }
+            retPc[csp] = next;
+            retCode[csp] = code;
+            retClosure[csp] = closure;
+            retBp[csp] = bp;
+            retDst[csp] = dst;
+            csp++;
+        }
+
+        //return val to the caller. False if there is no caller.
+        private boolean popFrame(var val) {
+            if (csp == 0)
+                return false;
+            csp--;
+            code = retCode[csp];
+            closure = retClosure[csp];
+            retClosure[csp] = null;
+            bp = retBp[csp];
+            ops = code.ops.elements;
+            constants = code.module.constants;
+            pc = retPc[csp];
+            regs[retDst[csp]] = val;
+            return true;
+        }
+
+        //call fn with the argc args at regs[base], putting the result in regs[dst] and continuing at next
+        private void call(var fn, int base, int argc, int dst, int next) {
+            if (fn instanceof Closure) {
+                pushFrame(next, dst);
+                enter((Closure)fn, base, argc);
+            } else {
+                regs[dst] = callPrimitive(fn, base, argc);
+                pc = next;
+            }
+        }
+
+        private var callPrimitive(var fn, int base, int argc) {
+            if (fn instanceof LPrimitive)
+                return ((LPrimitive)fn).call(regs, base, argc);
+            if (fn instanceof LKeyword) {
+                if (argc != 1)
+                    error("wrong number of arguments to keyword (must be 1)");
+                return get(regs[base], asKeyword(fn));
+            }
+            throw error("Not a function: " + fn);
+        }
+
+        //the slow path of a primop whose global was redefined: call its value with copies of the args
+        private void callGlobal(int b, int dst, int argc, int next) {
+            LBinding binding = (LBinding)constants[b];
+            if (binding.value == null)
+                error("Unbound variable: " + binding.sym);
+            int base = bp + code.size + 1;
+            ensureRegisters(base + argc + 1);
+            for (int i = 0; i < argc; i++)
+                regs[base + i] = regs[bp + ops[pc + 4 + i]];
+            call(binding.value, base, argc, bp + dst, next);
+        }
+
+        private boolean isBuiltin(int i) {
+            LBinding b = (LBinding)constants[i];
+            return b.value == b.primitive && b.value != null;
+        }
+
+        var run() {
+            var tmp;
+            while (true) {
+                switch (ops[pc]) {
+                case MOVE_OPCODE:
+                    regs[bp + ops[pc+1]] = regs[bp + ops[pc+2]];
+                    pc += 3;
+                    break;
+                case LITERAL_OPCODE:
+                    regs[bp + ops[pc+1]] = constants[ops[pc+2]];
+                    pc += 3;
+                    break;
+                case GLOBAL_OPCODE:
+                    tmp = ((LBinding)constants[ops[pc+2]]).value;
+                    if (tmp == null)
+                        error("Unbound variable: " + constants[ops[pc+2]]);
+                    regs[bp + ops[pc+1]] = tmp;
+                    pc += 3;
+                    break;
+                case DEFGLOBAL_OPCODE: {
+                    LBinding b = (LBinding)constants[ops[pc+2]];
+                    b.set(regs[bp + ops[pc+1]]);
+                    if (defs != null)
+                        defs.add(b.sym);
+                    pc += 3;
+                    break;
+                }
+                case SETGLOBAL_OPCODE: {
+                    LBinding b = (LBinding)constants[ops[pc+2]];
+                    if (b.value == null)
+                        error("Unbound variable: " + b.sym);
+                    b.set(regs[bp + ops[pc+1]]);
+                    pc += 3;
+                    break;
+                }
+                case FREE_OPCODE:
+                    regs[bp + ops[pc+1]] = closure.free[ops[pc+2]];
+                    pc += 3;
+                    break;
+                case BOX_OPCODE:
+                    regs[bp + ops[pc+1]] = new LBox(regs[bp + ops[pc+1]]);
+                    pc += 2;
+                    break;
+                case UNBOX_OPCODE:
+                    regs[bp + ops[pc+1]] = ((LBox)regs[bp + ops[pc+2]]).value;
+                    pc += 3;
+                    break;
+                case SETBOX_OPCODE:
+                    ((LBox)regs[bp + ops[pc+1]]).value = regs[bp + ops[pc+2]];
+                    pc += 3;
+                    break;
+                case CLOSURE_OPCODE: {
+                    int n = ops[pc+3];
+                    var [] free = (n == 0)? null : new var[n];
+                    for (int i = 0; i < n; i++)
+                        free[i] = regs[bp + ops[pc+4+i]];
+                    regs[bp + ops[pc+1]] = new Closure((Code)constants[ops[pc+2]], free);
+                    pc += 4 + n;
+                    break;
+                }
+                case JUMP_OPCODE:
+                    pc += ops[pc+1];
+                    break;
+                case JUMPFALSE_OPCODE:
+                    if (regs[bp + ops[pc+1]] == FALSE)
+                        pc += ops[pc+2];
+                    else
+                        pc += 3;
+                    break;
+                case CALL_OPCODE: {
+                    int f = bp + ops[pc+1];
+                    call(regs[f], f + 1, ops[pc+2], f, pc + 3);
+                    break;
+                }
+                case TAILCALL_OPCODE: {
+                    int f = bp + ops[pc+1];
+                    int argc = ops[pc+2];
+                    tmp = regs[f];
+                    if (tmp instanceof Closure) {
+                        //the args replace those of the current function
+                        System.arraycopy(regs, f + 1, regs, bp, argc);
+                        enter((Closure)tmp, bp, argc);
+                    } else {
+                        tmp = callPrimitive(tmp, f + 1, argc);
+                        if (!popFrame(tmp))
+                            return tmp;
+                    }
+                    break;
+                }
+                case RETURN_OPCODE:
+                    tmp = regs[bp + ops[pc+1]];
+                    if (!popFrame(tmp))
+                        return tmp;
+                    break;
+                case USE_OPCODE:
+                    regs[bp + ops[pc+1]] = useModule(asSymbol(constants[ops[pc+2]]));
+                    pc += 3;
+                    break;
+                case PRIMOP1_OPCODE:
+                    if (isBuiltin(ops[pc+3])) {
+                        regs[bp + ops[pc+2]] = LVM.unaryPrimop(ops[pc+1], regs[bp + ops[pc+4]]);
+                        pc += 5;
+                    } else
+                        callGlobal(ops[pc+3], ops[pc+2], 1, pc + 5);
+                    break;
+                case PRIMOP2_OPCODE:
+                    if (isBuiltin(ops[pc+3])) {
+                        regs[bp + ops[pc+2]] = LVM.binaryPrimop(ops[pc+1], regs[bp + ops[pc+4]], regs[bp + ops[pc+5]]);
+                        pc += 6;
+                    } else
+                        callGlobal(ops[pc+3], ops[pc+2], 2, pc + 6);
+                    break;
+                case PRIMOP3_OPCODE: //vector-set!
+                    if (isBuiltin(ops[pc+3])) {
+                        vectorSet(regs[bp + ops[pc+4]], regs[bp + ops[pc+5]], regs[bp + ops[pc+6]]);
+                        regs[bp + ops[pc+2]] = NIL;
+                        pc += 7;
+                    } else
+                        callGlobal(ops[pc+3], ops[pc+2], 3, pc + 7);
+                    break;
+                default:
+                    throw error("Bad instruction: " + ops[pc]);
+                }
+            }
+        }
+
+        private var useModule(LSymbol name) {
+            return importModule("registers", code.module, name.toString(), RUNNER).result;
+        }
+
+        static final ModuleRunner RUNNER = new ModuleRunner() {
+                LModule run(String name, var file, Class<?> primitives) {
+                    LModule used = Runtime.module(name, primitives);
+                    used.result = Registers.exec(new Compiler(used).compileRegisters(readSource(file)), used);
+                    return (used.result == null)? null : used;
+                }
+            };
+    }
+
+}
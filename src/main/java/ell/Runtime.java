@@ -1,10 +1,19 @@
 package ell;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.File;
 import java.lang.reflect.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 
 public class Runtime extends Notation {
 
@@ -26,6 +35,62 @@ public class Runtime extends Notation {
     static final int ADD_OPCODE = 16;
     static final int MUL_OPCODE = 17;
     static final int USE_OPCODE = 18;
+    static final int SETGLOBAL_OPCODE = 19;
+    static final int SUB_OPCODE = 20;
+    static final int EQ_OPCODE = 21;
+    static final int LT_OPCODE = 22;
+    static final int LE_OPCODE = 23;
+    static final int GT_OPCODE = 24;
+    static final int GE_OPCODE = 25;
+    static final int VECTOR_REF_OPCODE = 26;
+    static final int VECTOR_SET_OPCODE = 27;
+    static final int CONS_OPCODE = 28;
+    static final int NOT_OPCODE = 29;
+    static final int ZERO_OPCODE = 30;
+    static final int ARG_OPCODE = 31;
+    static final int SETARG_OPCODE = 32;
+    static final int FREE_OPCODE = 33;
+    static final int FLATCLOSURE_OPCODE = 34;
+    static final int BOX_OPCODE = 35;
+    static final int UNBOX_OPCODE = 36;
+    static final int SETBOX_OPCODE = 37;
+
+    //
+    // Superinstructions, put in by LCode.fuse in place of the first instruction of a common sequence.
+    // The rest of the sequence stays where it was, so the operands are read from there, jump offsets
+    // are unchanged, a jump into the middle of a sequence still works, and the slow path of a fused
+    // primop just does the first instruction and continues with the original ones.
+    //
+    static final int CALLGLOBAL_OPCODE = 38; //global f, call n
+    static final int TAILCALLGLOBAL_OPCODE = 39; //global f, tailcall n
+    static final int ARGRETURN_OPCODE = 40; //arg j, return
+    static final int LOCALRETURN_OPCODE = 41; //local i j, return
+    static final int LITERALRETURN_OPCODE = 42; //literal c, return
+    static final int ARGPRIMOP_OPCODE = 43; //arg j, unary primop
+    static final int ARGBRANCH_OPCODE = 44; //arg j, unary primop, jumpfalse
+    static final int LITERALARGPRIMOP_OPCODE = 45; //literal c, arg j, binary primop
+    static final int LITERALARGBRANCH_OPCODE = 46; //literal c, arg j, binary primop, jumpfalse
+    static final int LITERALLOCALBRANCH_OPCODE = 47; //literal c, local i j, binary primop, jumpfalse
+
+    //
+    // Immediate operands: integer literals that fit in an int are kept in the ops, instead of in the
+    // constant pool. INT pushes one, and the arithmetic and comparison primops with a literal second
+    // arg take it as an operand after the binding, so it is never pushed, or boxed if it is compared.
+    //
+    static final int INT_OPCODE = 48; //int n
+    static final int ADDI_OPCODE = 49; //addi binding n
+    static final int SUBI_OPCODE = 50;
+    static final int EQI_OPCODE = 51;
+    static final int LTI_OPCODE = 52;
+    static final int LEI_OPCODE = 53;
+    static final int GTI_OPCODE = 54;
+    static final int GEI_OPCODE = 55;
+
+    //superinstructions over immediates
+    static final int ARGIMMEDIATE_OPCODE = 56; //arg j, immediate primop
+    static final int ARGIMMEDIATEBRANCH_OPCODE = 57; //arg j, immediate primop, jumpfalse
+    static final int LOCALIMMEDIATEBRANCH_OPCODE = 58; //local i j, immediate primop, jumpfalse
+    static final int INTRETURN_OPCODE = 59; //int n, return
 
     static final LSymbol SYM_LITERAL = LSymbol.intern("literal");
     static final LSymbol SYM_LOCAL = LSymbol.intern("local");
@@ -38,21 +103,233 @@ public class Runtime extends Notation {
     static final LSymbol SYM_POP = LSymbol.intern("pop");
     static final LSymbol SYM_GLOBAL = LSymbol.intern("global");
     static final LSymbol SYM_DEFGLOBAL = LSymbol.intern("defglobal");
+    static final LSymbol SYM_SETGLOBAL = LSymbol.intern("setglobal");
     static final LSymbol SYM_FUNC = LSymbol.intern("function");
     static final LSymbol SYM_SETLOCAL = LSymbol.intern("setlocal");
     static final LSymbol SYM_USE = LSymbol.intern("use");
+    static final LSymbol SYM_ARG = LSymbol.intern("arg");
+    static final LSymbol SYM_SETARG = LSymbol.intern("setarg");
+    static final LSymbol SYM_FREE = LSymbol.intern("free");
+    static final LSymbol SYM_FLATCLOSURE = LSymbol.intern("flatclosure");
+    static final LSymbol SYM_BOX = LSymbol.intern("box");
+    static final LSymbol SYM_UNBOX = LSymbol.intern("unbox");
+    static final LSymbol SYM_SETBOX = LSymbol.intern("setbox");
+    static final LSymbol SYM_CALLGLOBAL = LSymbol.intern("callglobal");
+    static final LSymbol SYM_TAILCALLGLOBAL = LSymbol.intern("tailcallglobal");
+    static final LSymbol SYM_ARGRETURN = LSymbol.intern("argreturn");
+    static final LSymbol SYM_LOCALRETURN = LSymbol.intern("localreturn");
+    static final LSymbol SYM_LITERALRETURN = LSymbol.intern("literalreturn");
+    static final LSymbol SYM_ARGPRIMOP = LSymbol.intern("argprimop");
+    static final LSymbol SYM_ARGBRANCH = LSymbol.intern("argbranch");
+    static final LSymbol SYM_LITERALARGPRIMOP = LSymbol.intern("literalargprimop");
+    static final LSymbol SYM_LITERALARGBRANCH = LSymbol.intern("literalargbranch");
+    static final LSymbol SYM_LITERALLOCALBRANCH = LSymbol.intern("literallocalbranch");
+    static final LSymbol SYM_INT = LSymbol.intern("int");
+    static final LSymbol SYM_ARGIMMEDIATE = LSymbol.intern("argimmediate");
+    static final LSymbol SYM_ARGIMMEDIATEBRANCH = LSymbol.intern("argimmediatebranch");
+    static final LSymbol SYM_LOCALIMMEDIATEBRANCH = LSymbol.intern("localimmediatebranch");
+    static final LSymbol SYM_INTRETURN = LSymbol.intern("intreturn");
 
     static final LSymbol SYM_CAR = LSymbol.intern("car");
     static final LSymbol SYM_CDR = LSymbol.intern("cdr");
     static final LSymbol SYM_NULL = LSymbol.intern("null");
     static final LSymbol SYM_ADD = LSymbol.intern("add");
     static final LSymbol SYM_MUL = LSymbol.intern("mul");
+    static final LSymbol SYM_SUB = LSymbol.intern("sub");
+    static final LSymbol SYM_EQ = LSymbol.intern("eq");
+    static final LSymbol SYM_LT = LSymbol.intern("lt");
+    static final LSymbol SYM_LE = LSymbol.intern("le");
+    static final LSymbol SYM_GT = LSymbol.intern("gt");
+    static final LSymbol SYM_GE = LSymbol.intern("ge");
+    static final LSymbol SYM_VECTOR_REF = LSymbol.intern("vector-ref");
+    static final LSymbol SYM_VECTOR_SET = LSymbol.intern("vector-set");
+    static final LSymbol SYM_CONS = LSymbol.intern("cons");
+    static final LSymbol SYM_NOT = LSymbol.intern("not");
+    static final LSymbol SYM_ZERO = LSymbol.intern("zero");
+
+    //
+    // Primops are instructions that inline a call to a builtin primitive. The operand of each is the
+    // global binding of the function it replaces, and the fast path is only taken while that binding
+    // still holds the builtin. If the global has been redefined, the new value is called instead.
+    //
+    static final int [] PRIMOP_OPCODES = {
+        NULL_OPCODE, CAR_OPCODE, CDR_OPCODE, ADD_OPCODE, MUL_OPCODE, SUB_OPCODE, EQ_OPCODE,
+        LT_OPCODE, LE_OPCODE, GT_OPCODE, GE_OPCODE, VECTOR_REF_OPCODE, VECTOR_SET_OPCODE,
+        CONS_OPCODE, NOT_OPCODE, ZERO_OPCODE
+    };
+    static final LSymbol [] PRIMOP_INSTRUCTIONS = {
+        SYM_NULL, SYM_CAR, SYM_CDR, SYM_ADD, SYM_MUL, SYM_SUB, SYM_EQ,
+        SYM_LT, SYM_LE, SYM_GT, SYM_GE, SYM_VECTOR_REF, SYM_VECTOR_SET,
+        SYM_CONS, SYM_NOT, SYM_ZERO
+    };
+    static final LSymbol [] PRIMOP_FUNCTIONS = {
+        intern("null?"), intern("car"), intern("cdr"), intern("+"), intern("*"), intern("-"), intern("="),
+        intern("<"), intern("<="), intern(">"), intern(">="), intern("vector-ref"), intern("vector-set!"),
+        intern("cons"), intern("not"), intern("zero?")
+    };
+    static final int [] PRIMOP_ARGC = {
+        1, 1, 1, 2, 2, 2, 2,
+        2, 2, 2, 2, 2, 3,
+        2, 1, 1
+    };
+
+    static int primopIndex(int opcode) {
+        for (int i=0; i<PRIMOP_OPCODES.length; i++)
+            if (PRIMOP_OPCODES[i] == opcode)
+                return i;
+        return -1;
+    }
+
+    /** The primop opcode for the given lap instruction, or -1 */
+    static int primopInstruction(var op) {
+        for (int i=0; i<PRIMOP_INSTRUCTIONS.length; i++)
+            if (PRIMOP_INSTRUCTIONS[i] == op)
+                return PRIMOP_OPCODES[i];
+        return -1;
+    }
+
+    /** The primop opcode that can replace a call to fn with argc arguments, or -1 */
+    static int primopFunction(var fn, int argc) {
+        for (int i=0; i<PRIMOP_FUNCTIONS.length; i++)
+            if (PRIMOP_FUNCTIONS[i] == fn && PRIMOP_ARGC[i] == argc)
+                return PRIMOP_OPCODES[i];
+        return -1;
+    }
+
+    static final int [] IMMEDIATE_OPCODES = {
+        ADDI_OPCODE, SUBI_OPCODE, EQI_OPCODE, LTI_OPCODE, LEI_OPCODE, GTI_OPCODE, GEI_OPCODE
+    };
+    static final LSymbol [] IMMEDIATE_INSTRUCTIONS = {
+        intern("addi"), intern("subi"), intern("eqi"), intern("lti"), intern("lei"), intern("gti"), intern("gei")
+    };
+    //the primop each immediate primop does
+    static final int [] IMMEDIATE_PRIMOPS = {
+        ADD_OPCODE, SUB_OPCODE, EQ_OPCODE, LT_OPCODE, LE_OPCODE, GT_OPCODE, GE_OPCODE
+    };
+
+    static int immediateIndex(int opcode) {
+        int i = opcode - ADDI_OPCODE;
+        return (i >= 0 && i < IMMEDIATE_OPCODES.length)? i : -1;
+    }
+
+    //the immediate form of the primop, or -1
+    static int immediateOpcode(int primop) {
+        for (int i=0; i<IMMEDIATE_PRIMOPS.length; i++)
+            if (IMMEDIATE_PRIMOPS[i] == primop)
+                return IMMEDIATE_OPCODES[i];
+        return -1;
+    }
+
+    /** The immediate primop opcode for the given lap instruction, or -1 */
+    static int immediateInstruction(var op) {
+        for (int i=0; i<IMMEDIATE_INSTRUCTIONS.length; i++)
+            if (IMMEDIATE_INSTRUCTIONS[i] == op)
+                return IMMEDIATE_OPCODES[i];
+        return -1;
+    }
+
+    //an integer literal that can be an immediate operand
+    static boolean isImmediate(var obj) {
+        return obj instanceof LInteger && ((LInteger)obj).value == (int)((LInteger)obj).value;
+    }
+
+    //the primops a superinstruction can fuse: those taking one arg, and those taking two
+    static boolean isUnaryPrimop(int opcode) {
+        switch (opcode) {
+        case CAR_OPCODE: case CDR_OPCODE: case NULL_OPCODE: case NOT_OPCODE: case ZERO_OPCODE:
+            return true;
+        default:
+            return false;
+        }
+    }
+    static boolean isBinaryPrimop(int opcode) {
+        switch (opcode) {
+        case ADD_OPCODE: case SUB_OPCODE: case MUL_OPCODE: case EQ_OPCODE: case LT_OPCODE: case LE_OPCODE:
+        case GT_OPCODE: case GE_OPCODE: case CONS_OPCODE: case VECTOR_REF_OPCODE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    //the number of ints taken by the instruction, or by the whole sequence for a superinstruction
+    static int opLength(int opcode) {
+        switch (opcode) {
+        case RETURN_OPCODE: case POP_OPCODE: case UNBOX_OPCODE: case SETBOX_OPCODE:
+            return 1;
+        case LOCAL_OPCODE: case SETLOCAL_OPCODE: case FLATCLOSURE_OPCODE:
+        case ARGRETURN_OPCODE: case LITERALRETURN_OPCODE: case INTRETURN_OPCODE:
+        case ADDI_OPCODE: case SUBI_OPCODE: case EQI_OPCODE: case LTI_OPCODE: case LEI_OPCODE: case GTI_OPCODE: case GEI_OPCODE:
+            return 3;
+        case CALLGLOBAL_OPCODE: case TAILCALLGLOBAL_OPCODE: case LOCALRETURN_OPCODE: case ARGPRIMOP_OPCODE:
+            return 4;
+        case ARGIMMEDIATE_OPCODE:
+            return 5;
+        case ARGBRANCH_OPCODE: case LITERALARGPRIMOP_OPCODE:
+            return 6;
+        case ARGIMMEDIATEBRANCH_OPCODE:
+            return 7;
+        case LITERALARGBRANCH_OPCODE: case LOCALIMMEDIATEBRANCH_OPCODE:
+            return 8;
+        case LITERALLOCALBRANCH_OPCODE:
+            return 9;
+        default:
+            return 2;
+        }
+    }
+
+    //the instruction a superinstruction replaced
+    static int unfusedOpcode(int opcode) {
+        switch (opcode) {
+        case CALLGLOBAL_OPCODE: case TAILCALLGLOBAL_OPCODE:
+            return GLOBAL_OPCODE;
+        case ARGRETURN_OPCODE: case ARGPRIMOP_OPCODE: case ARGBRANCH_OPCODE:
+        case ARGIMMEDIATE_OPCODE: case ARGIMMEDIATEBRANCH_OPCODE:
+            return ARG_OPCODE;
+        case LOCALRETURN_OPCODE: case LOCALIMMEDIATEBRANCH_OPCODE:
+            return LOCAL_OPCODE;
+        case INTRETURN_OPCODE:
+            return INT_OPCODE;
+        case LITERALRETURN_OPCODE: case LITERALARGPRIMOP_OPCODE: case LITERALARGBRANCH_OPCODE: case LITERALLOCALBRANCH_OPCODE:
+            return LITERAL_OPCODE;
+        default:
+            return opcode;
+        }
+    }
 
     static final LSymbol SYM_FUNCTION = intern("function");
     static final LSymbol SYM_MODULE = intern("module");
+    static final LSymbol SYM_BINDING = intern("binding");
 
     static boolean verbose = false;
 
+    //the number of calls after which a function is compiled to JVM bytecode by the Jit, 0 to never compile
+    public static int jitThreshold = 0;
+
+    //run modules on the Ast interpreter instead of the LVM
+    public static boolean astInterpreter = false;
+
+    //run modules on the register machine instead of the LVM
+    public static boolean registerMachine = false;
+
+    //compile closures flat: each closure copies the variables it uses, instead of linking to its parent's frame
+    public static boolean flatClosures = false;
+
+    //fuse common instruction sequences into superinstructions after compiling (see LCode.fuse)
+    public static boolean superinstructions = true;
+
+    //the initial size of a VM's stack, which grows as needed up to maxStack values (or nested calls),
+    //past which a call fails with a stack overflow
+    public static int initialStack = 1024;
+    public static int maxStack = 1 << 20;
+
+    //save each module loadModule compiles as a .ellc image next to its source, and load that instead of
+    //the source while it is fresh (see ModuleCache)
+    public static boolean cacheModules = false;
+
+    //reuse an idle LVM of the current thread for exec and call, instead of making a new one each time
+    public static boolean reuseVMs = true;
+
     static class IntVector {
         int [] elements;
         int count;
@@ -103,6 +380,9 @@ public class Runtime extends Notation {
         LModule module;
         var rest;
         int argc;
+        boolean stackFrame; //no closure can capture the frame, so the args stay on the stack (see arg/setarg)
+        int calls; //the number of times the VM has entered this code, until it is compiled
+        Jit.Compiled jit; //the code compiled to JVM bytecode, if it got hot
         public LCode(LModule module, int argc) {
             this(module, argc, NIL);
         }
@@ -124,6 +404,14 @@ public class Runtime extends Notation {
                     int ac = intValue(car(lstFunc));
                     LCode fun = new LCode(module, ac).loadOps(cdr(lstFunc));
                     emitClosure(fun);
+                } else if (op == SYM_FLATCLOSURE) {
+                    var lstFunc = cadr(instr);
+                    if (asSymbol(car(lstFunc)) != SYM_FUNC)
+                        error("Bad argument for a closure: " + lstFunc);
+                    lstFunc = cdr(lstFunc);
+                    LCode fun = new LCode(module, intValue(car(lstFunc)));
+                    fun.stackFrame = true;
+                    emitFlatClosure(fun.loadOps(cdr(lstFunc)), intValue(caddr(instr)));
                 } else if (op == SYM_FUNC) {
                     //what is this for?
                 } else if (op == SYM_LITERAL) {
@@ -132,6 +420,18 @@ public class Runtime extends Notation {
                     emitLocal(intValue(cadr(instr)), intValue(caddr(instr)));
                 } else if (op == SYM_SETLOCAL) {
                     emitSetLocal(intValue(cadr(instr)), intValue(caddr(instr)));
+                } else if (op == SYM_ARG) {
+                    emitArg(intValue(cadr(instr)));
+                } else if (op == SYM_SETARG) {
+                    emitSetArg(intValue(cadr(instr)));
+                } else if (op == SYM_FREE) {
+                    emitFree(intValue(cadr(instr)));
+                } else if (op == SYM_BOX) {
+                    emitBox(intValue(cadr(instr)));
+                } else if (op == SYM_UNBOX) {
+                    emitUnbox();
+                } else if (op == SYM_SETBOX) {
+                    emitSetBox();
                 } else if (op == SYM_GLOBAL) {
                     emitGlobal(cadr(instr));
                 } else if (op == SYM_JUMP) {
@@ -148,18 +448,53 @@ public class Runtime extends Notation {
                     emitPop();
                 } else if (op == SYM_DEFGLOBAL) {
                     emitDefGlobal(cadr(instr));
+                } else if (op == SYM_SETGLOBAL) {
+                    emitSetGlobal(cadr(instr));
                 } else if (op == SYM_USE) {
                     emitUse(cadr(instr));
-                } else if (op == SYM_CAR) {
-                    emitCar();
-                } else if (op == SYM_CDR) {
-                    emitCdr();
-                } else if (op == SYM_NULL) {
-                    emitNull();
-                } else if (op == SYM_ADD) {
-                    emitAdd();
-                } else if (op == SYM_MUL) {
-                    emitMul();
+                } else if (primopInstruction(op) >= 0) {
+                    emitPrimop(primopInstruction(op));
+                } else if (op == SYM_INT) {
+                    emitInt(intValue(cadr(instr)));
+                } else if (immediateInstruction(op) >= 0) {
+                    emitImmediate(immediateInstruction(op), intValue(cadr(instr)));
+                } else if (op == SYM_INTRETURN) {
+                    emitInt(intValue(cadr(instr))).emitReturn();
+                } else if (op == SYM_ARGIMMEDIATE) {
+                    emitArg(intValue(cadr(instr))).emitImmediate(immediateInstruction(caddr(instr)), intValue(car(cdddr(instr))));
+                } else if (op == SYM_ARGIMMEDIATEBRANCH) {
+                    emitArg(intValue(cadr(instr))).emitImmediate(immediateInstruction(caddr(instr)), intValue(car(cdddr(instr))));
+                    emitJumpFalse(intValue(cadr(cdddr(instr))));
+                } else if (op == SYM_LOCALIMMEDIATEBRANCH) {
+                    emitLocal(intValue(cadr(instr)), intValue(caddr(instr)));
+                    emitImmediate(immediateInstruction(car(cdddr(instr))), intValue(cadr(cdddr(instr))));
+                    emitJumpFalse(intValue(caddr(cdddr(instr))));
+                } else if (op == SYM_CALLGLOBAL) {
+                    emitGlobal(cadr(instr)).emitCall(intValue(caddr(instr)));
+                } else if (op == SYM_TAILCALLGLOBAL) {
+                    emitGlobal(cadr(instr)).emitTailCall(intValue(caddr(instr)));
+                } else if (op == SYM_ARGRETURN) {
+                    emitArg(intValue(cadr(instr))).emitReturn();
+                } else if (op == SYM_LOCALRETURN) {
+                    emitLocal(intValue(cadr(instr)), intValue(caddr(instr))).emitReturn();
+                } else if (op == SYM_LITERALRETURN) {
+                    emitLiteral(cadr(instr)).emitReturn();
+                } else if (op == SYM_ARGPRIMOP) {
+                    emitArg(intValue(cadr(instr))).emitPrimop(primopInstruction(caddr(instr)));
+                } else if (op == SYM_ARGBRANCH) {
+                    emitArg(intValue(cadr(instr))).emitPrimop(primopInstruction(caddr(instr)));
+                    emitJumpFalse(intValue(car(cdddr(instr))));
+                } else if (op == SYM_LITERALARGPRIMOP) {
+                    emitLiteral(cadr(instr)).emitArg(intValue(caddr(instr)));
+                    emitPrimop(primopInstruction(car(cdddr(instr))));
+                } else if (op == SYM_LITERALARGBRANCH) {
+                    emitLiteral(cadr(instr)).emitArg(intValue(caddr(instr)));
+                    emitPrimop(primopInstruction(car(cdddr(instr))));
+                    emitJumpFalse(intValue(cadr(cdddr(instr))));
+                } else if (op == SYM_LITERALLOCALBRANCH) {
+                    emitLiteral(cadr(instr)).emitLocal(intValue(caddr(instr)), intValue(car(cdddr(instr))));
+                    emitPrimop(primopInstruction(cadr(cdddr(instr))));
+                    emitJumpFalse(intValue(caddr(cdddr(instr))));
                 } else {
                     error("Unknown instruction: " + op);
                 }
@@ -175,6 +510,21 @@ public class Runtime extends Notation {
             ops.add(module.putConstant(obj));
             return this;
         }
+        public LCode emitInt(int n) {
+            ops.add(INT_OPCODE);
+            ops.add(n);
+            return this;
+        }
+        //the primop with its second arg n, like emitPrimop the binding of the builtin is the first operand
+        public LCode emitImmediate(int opcode, int n) {
+            int i = immediateIndex(opcode);
+            if (i < 0)
+                error("emitImmediate: not an immediate primop: " + opcode);
+            ops.add(opcode);
+            ops.add(module.putConstant(module.binding(PRIMOP_FUNCTIONS[primopIndex(IMMEDIATE_PRIMOPS[i])])));
+            ops.add(n);
+            return this;
+        }
         public LCode emitClosure(LCode code) {
             ops.add(CLOSURE_OPCODE);
             ops.add(module.putConstant(code));
@@ -192,18 +542,61 @@ public class Runtime extends Notation {
             ops.add(j);
             return this;
         }
+        public LCode emitArg(int j) {
+            ops.add(ARG_OPCODE);
+            ops.add(j);
+            return this;
+        }
+        public LCode emitSetArg(int j) {
+            ops.add(SETARG_OPCODE);
+            ops.add(j);
+            return this;
+        }
+        //a flat closure over the n values on top of the stack, the first of them at the top
+        public LCode emitFlatClosure(LCode code, int n) {
+            ops.add(FLATCLOSURE_OPCODE);
+            ops.add(module.putConstant(code));
+            ops.add(n);
+            return this;
+        }
+        public LCode emitFree(int k) {
+            ops.add(FREE_OPCODE);
+            ops.add(k);
+            return this;
+        }
+        public LCode emitBox(int j) {
+            ops.add(BOX_OPCODE);
+            ops.add(j);
+            return this;
+        }
+        public LCode emitUnbox() {
+            ops.add(UNBOX_OPCODE);
+            return this;
+        }
+        public LCode emitSetBox() {
+            ops.add(SETBOX_OPCODE);
+            return this;
+        }
+        //global references are linked to the module's binding cell when emitted, not looked up at runtime
         public LCode emitGlobal(var sym) {
             if (!isSymbol(sym))
                 error("emitGlobal: not a symbol: " + sym);
             ops.add(GLOBAL_OPCODE);
-            ops.add(module.putConstant(sym));
+            ops.add(module.putConstant(module.binding(asSymbol(sym))));
             return this;
         }
         public LCode emitDefGlobal(var sym) {
             if (!isSymbol(sym))
                 error("emitDefGlobal: not a symbol: " + sym);
             ops.add(DEFGLOBAL_OPCODE);
-            ops.add(module.putConstant(sym));
+            ops.add(module.putConstant(module.binding(asSymbol(sym))));
+            return this;
+        }
+        public LCode emitSetGlobal(var sym) {
+            if (!isSymbol(sym))
+                error("emitSetGlobal: not a symbol: " + sym);
+            ops.add(SETGLOBAL_OPCODE);
+            ops.add(module.putConstant(module.binding(asSymbol(sym))));
             return this;
         }
         public LCode emitCall(int argc) {
@@ -248,25 +641,12 @@ public class Runtime extends Notation {
             return this;
         }
         
-        public LCode emitCar() {
-            ops.add(CAR_OPCODE);
-            return this;
-        }
-        public LCode emitCdr() {
-            ops.add(CDR_OPCODE);
-            return this;
-        }
-        public LCode emitNull() {
-            ops.add(NULL_OPCODE);
-            return this;
-        }
-
-        public LCode emitAdd() {
-            ops.add(ADD_OPCODE);
-            return this;
-        }
-        public LCode emitMul() {
-            ops.add(MUL_OPCODE);
+        public LCode emitPrimop(int opcode) {
+            int i = primopIndex(opcode);
+            if (i < 0)
+                error("emitPrimop: not a primop: " + opcode);
+            ops.add(opcode);
+            ops.add(module.putConstant(module.binding(PRIMOP_FUNCTIONS[i])));
             return this;
         }
 
@@ -281,6 +661,9 @@ public class Runtime extends Notation {
             case DEFGLOBAL_OPCODE:
                 sb.append(" (" + SYM_DEFGLOBAL + " " + module.getConstant(ops.getInt(offset+1)) + ")");
                 return offset + 2;
+            case SETGLOBAL_OPCODE:
+                sb.append(" (" + SYM_SETGLOBAL + " " + module.getConstant(ops.getInt(offset+1)) + ")");
+                return offset + 2;
             case JUMP_OPCODE:
                 sb.append(" (" + SYM_JUMP + " " + ops.getInt(offset+1) + ")");
                 return offset + 2;
@@ -305,33 +688,190 @@ public class Runtime extends Notation {
             case CLOSURE_OPCODE:
                 sb.append(" (" + SYM_CLOSURE + " " + module.getConstant(ops.getInt(offset+1)) + ")");
                 return offset + 2;
+            case FLATCLOSURE_OPCODE:
+                sb.append(" (" + SYM_FLATCLOSURE + " " + module.getConstant(ops.getInt(offset+1)) + " " + ops.getInt(offset+2) + ")");
+                return offset + 3;
+            case FREE_OPCODE:
+                sb.append(" (" + SYM_FREE + " " + ops.getInt(offset+1) + ")");
+                return offset + 2;
+            case BOX_OPCODE:
+                sb.append(" (" + SYM_BOX + " " + ops.getInt(offset+1) + ")");
+                return offset + 2;
+            case UNBOX_OPCODE:
+                sb.append(" (" + SYM_UNBOX + ")");
+                return offset + 1;
+            case SETBOX_OPCODE:
+                sb.append(" (" + SYM_SETBOX + ")");
+                return offset + 1;
             case SETLOCAL_OPCODE:
             	sb.append(" (" + SYM_SETLOCAL + " " + ops.getInt(offset+1) + " " + ops.getInt(offset+2) + ")");
                 return offset + 3;
+            case ARG_OPCODE:
+                sb.append(" (" + SYM_ARG + " " + ops.getInt(offset+1) + ")");
+                return offset + 2;
+            case SETARG_OPCODE:
+                sb.append(" (" + SYM_SETARG + " " + ops.getInt(offset+1) + ")");
+                return offset + 2;
             case USE_OPCODE:
                 sb.append(" (" + SYM_USE + " " + module.getConstant(ops.getInt(offset+1)) + ")");
                 return offset + 2;
-            case NULL_OPCODE:
-                sb.append(" (" + SYM_NULL + ")");
-                return offset + 1;
-            case CAR_OPCODE:
-                sb.append(" (" + SYM_CAR + ")");
-                return offset + 1;
-            case CDR_OPCODE:
-                sb.append(" (" + SYM_CDR + ")");
-                return offset + 1;
-            case ADD_OPCODE:
-                sb.append(" (" + SYM_ADD + ")");
-                return offset + 1;
-            case MUL_OPCODE:
-                sb.append(" (" + SYM_MUL + ")");
-                return offset + 1;
+            case INT_OPCODE:
+                sb.append(" (" + SYM_INT + " " + ops.getInt(offset+1) + ")");
+                return offset + 2;
+            case INTRETURN_OPCODE:
+                sb.append(" (" + SYM_INTRETURN + " " + ops.getInt(offset+1) + ")");
+                return offset + 3;
+            case ARGIMMEDIATE_OPCODE:
+                sb.append(" (" + SYM_ARGIMMEDIATE + " " + ops.getInt(offset+1) + " " + immediateName(offset+2) + " " + ops.getInt(offset+4) + ")");
+                return offset + 5;
+            case ARGIMMEDIATEBRANCH_OPCODE:
+                sb.append(" (" + SYM_ARGIMMEDIATEBRANCH + " " + ops.getInt(offset+1) + " " + immediateName(offset+2) + " " + ops.getInt(offset+4) + " " + ops.getInt(offset+6) + ")");
+                return offset + 7;
+            case LOCALIMMEDIATEBRANCH_OPCODE:
+                sb.append(" (" + SYM_LOCALIMMEDIATEBRANCH + " " + ops.getInt(offset+1) + " " + ops.getInt(offset+2) + " " + immediateName(offset+3) + " " + ops.getInt(offset+5) + " " + ops.getInt(offset+7) + ")");
+                return offset + 8;
+            case CALLGLOBAL_OPCODE:
+                sb.append(" (" + SYM_CALLGLOBAL + " " + module.getConstant(ops.getInt(offset+1)) + " " + ops.getInt(offset+3) + ")");
+                return offset + 4;
+            case TAILCALLGLOBAL_OPCODE:
+                sb.append(" (" + SYM_TAILCALLGLOBAL + " " + module.getConstant(ops.getInt(offset+1)) + " " + ops.getInt(offset+3) + ")");
+                return offset + 4;
+            case ARGRETURN_OPCODE:
+                sb.append(" (" + SYM_ARGRETURN + " " + ops.getInt(offset+1) + ")");
+                return offset + 3;
+            case LOCALRETURN_OPCODE:
+                sb.append(" (" + SYM_LOCALRETURN + " " + ops.getInt(offset+1) + " " + ops.getInt(offset+2) + ")");
+                return offset + 4;
+            case LITERALRETURN_OPCODE:
+                sb.append(" (" + SYM_LITERALRETURN + " " + write(module.getConstant(ops.getInt(offset+1))) + ")");
+                return offset + 3;
+            case ARGPRIMOP_OPCODE:
+                sb.append(" (" + SYM_ARGPRIMOP + " " + ops.getInt(offset+1) + " " + primopName(offset+2) + ")");
+                return offset + 4;
+            case ARGBRANCH_OPCODE:
+                sb.append(" (" + SYM_ARGBRANCH + " " + ops.getInt(offset+1) + " " + primopName(offset+2) + " " + ops.getInt(offset+5) + ")");
+                return offset + 6;
+            case LITERALARGPRIMOP_OPCODE:
+                sb.append(" (" + SYM_LITERALARGPRIMOP + " " + write(module.getConstant(ops.getInt(offset+1))) + " " + ops.getInt(offset+3) + " " + primopName(offset+4) + ")");
+                return offset + 6;
+            case LITERALARGBRANCH_OPCODE:
+                sb.append(" (" + SYM_LITERALARGBRANCH + " " + write(module.getConstant(ops.getInt(offset+1))) + " " + ops.getInt(offset+3) + " " + primopName(offset+4) + " " + ops.getInt(offset+7) + ")");
+                return offset + 8;
+            case LITERALLOCALBRANCH_OPCODE:
+                sb.append(" (" + SYM_LITERALLOCALBRANCH + " " + write(module.getConstant(ops.getInt(offset+1))) + " " + ops.getInt(offset+3) + " " + ops.getInt(offset+4) + " " + primopName(offset+5) + " " + ops.getInt(offset+8) + ")");
+                return offset + 9;
             default:
+                int i = primopIndex(ops.getInt(offset));
+                if (i >= 0) {
+                    sb.append(" (" + PRIMOP_INSTRUCTIONS[i] + ")");
+                    return offset + 2;
+                }
+                if (immediateIndex(ops.getInt(offset)) >= 0) {
+                    sb.append(" (" + immediateName(offset) + " " + ops.getInt(offset+2) + ")");
+                    return offset + 3;
+                }
                 sb.append("?");
                 System.out.println("FIX ME: " + ops.getInt(offset));
                 return -1;
             }
         }
+        private LSymbol primopName(int offset) {
+            return PRIMOP_INSTRUCTIONS[primopIndex(ops.getInt(offset))];
+        }
+
+        private LSymbol immediateName(int offset) {
+            return IMMEDIATE_INSTRUCTIONS[immediateIndex(ops.getInt(offset))];
+        }
+
+        //the whole function as lap, one instruction per superinstruction
+        public String decompile() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("(" + SYM_FUNC + " " + argc);
+            int i = 0;
+            while (i >= 0 && i < ops.size())
+                i = decompile(sb, i);
+            sb.append(")");
+            return sb.toString();
+        }
+
+        //
+        // The peephole pass: replace the first instruction of each fusable sequence with the
+        // superinstruction for it, here and in the functions this code creates. Only the ops at
+        // instruction boundaries are looked at, and sequences never overlap, so fusing twice is harmless.
+        //
+        LCode fuse() {
+            int [] code = ops.elements;
+            int max = ops.size();
+            int pc = 0;
+            while (pc < max) {
+                int op = code[pc];
+                int next = pc + opLength(op);
+                int op2 = (next < max)? code[next] : 0;
+                int next2 = (next < max)? next + opLength(op2) : max;
+                int op3 = (next2 < max)? code[next2] : 0;
+                int next3 = (next2 < max)? next2 + opLength(op3) : max;
+                int op4 = (next3 < max)? code[next3] : 0;
+                int fused = op;
+                switch (op) {
+                case CLOSURE_OPCODE:
+                case FLATCLOSURE_OPCODE:
+                    ((LCode)module.getConstant(code[pc+1])).fuse();
+                    break;
+                case GLOBAL_OPCODE:
+                    if (op2 == CALL_OPCODE)
+                        fused = CALLGLOBAL_OPCODE;
+                    else if (op2 == TAILCALL_OPCODE)
+                        fused = TAILCALLGLOBAL_OPCODE;
+                    break;
+                case ARG_OPCODE:
+                    if (op2 == RETURN_OPCODE)
+                        fused = ARGRETURN_OPCODE;
+                    else if (isUnaryPrimop(op2))
+                        fused = (op3 == JUMPFALSE_OPCODE)? ARGBRANCH_OPCODE : ARGPRIMOP_OPCODE;
+                    else if (immediateIndex(op2) >= 0)
+                        fused = (op3 == JUMPFALSE_OPCODE)? ARGIMMEDIATEBRANCH_OPCODE : ARGIMMEDIATE_OPCODE;
+                    break;
+                case LOCAL_OPCODE:
+                    if (op2 == RETURN_OPCODE)
+                        fused = LOCALRETURN_OPCODE;
+                    else if (immediateIndex(op2) >= 0 && op3 == JUMPFALSE_OPCODE)
+                        fused = LOCALIMMEDIATEBRANCH_OPCODE;
+                    break;
+                case INT_OPCODE:
+                    if (op2 == RETURN_OPCODE)
+                        fused = INTRETURN_OPCODE;
+                    break;
+                case LITERAL_OPCODE:
+                    if (op2 == RETURN_OPCODE)
+                        fused = LITERALRETURN_OPCODE;
+                    else if (op2 == ARG_OPCODE && isBinaryPrimop(op3))
+                        fused = (op4 == JUMPFALSE_OPCODE)? LITERALARGBRANCH_OPCODE : LITERALARGPRIMOP_OPCODE;
+                    else if (op2 == LOCAL_OPCODE && isBinaryPrimop(op3) && op4 == JUMPFALSE_OPCODE)
+                        fused = LITERALLOCALBRANCH_OPCODE;
+                    break;
+                }
+                code[pc] = fused;
+                pc += opLength(fused);
+            }
+            return this;
+        }
+
+        //a copy of the ops with the superinstructions replaced by the instructions they fused
+        int [] unfused() {
+            int max = ops.size();
+            int [] result = new int[max];
+            System.arraycopy(ops.elements, 0, result, 0, max);
+            for (int pc = 0; pc < max; pc += opLength(ops.elements[pc]))
+                result[pc] = unfusedOpcode(ops.elements[pc]);
+            return result;
+        }
+
+        //fall back to the interpreter, which counts the calls again before recompiling
+        void deoptimize() {
+            if (verbose) println("; deoptimize: " + this);
+            jit = null;
+            calls = 0;
+        }
         public String toString() {
             StringBuilder sb = new StringBuilder();
             int max = ops.size();
@@ -349,35 +889,94 @@ public class Runtime extends Notation {
     public static boolean isCode(var code) { return code instanceof LCode; }
     public static LCode asCode(var code) { if (!isCode(code)) error("not executable", code); return (LCode)code; }
 
+    //
+    // A local variable that is both captured by a flat closure and assigned. The closures and the
+    // function share the box, so they all see the assignment.
+    //
+    static final class LBox extends var {
+        var value;
+        LBox(var value) {
+            this.value = value;
+        }
+        LSymbol type() { return SYM_BOX; }
+        public String toString() { return "<box " + value + ">"; }
+    }
+
+    //
+    // A mutable cell holding the value of a global variable. Each module has one per symbol, and
+    // compiled code refers to the cell directly, so a global reference is a single field load, and
+    // redefinition is seen by all code that was linked against it.
+    //
+    static final class LBinding extends var {
+        final LSymbol sym;
+        volatile var value; //null if unbound
+        var primitive; //the builtin defined by definePrimitives, if any. Primops inline calls to it.
+        ArrayList<LCode> dependents; //code compiled by the Jit on the assumption that this holds its builtin
+        LBinding(LSymbol sym) {
+            this.sym = sym;
+        }
+        void set(var val) {
+            value = val;
+            if (dependents != null)
+                deoptimizeDependents();
+        }
+        //Compiled code checks the binding again before each inlined primop, so a dependent added just
+        //after a set only runs the slow path until the next deoptimization.
+        synchronized void addDependent(LCode code) {
+            if (dependents == null)
+                dependents = new ArrayList<LCode>();
+            dependents.add(code);
+        }
+        private synchronized void deoptimizeDependents() {
+            if (dependents != null) {
+                for (LCode code : dependents)
+                    code.deoptimize();
+                dependents = null;
+            }
+        }
+        LSymbol type() { return SYM_BINDING; }
+        public String toString() { return sym.toString(); }
+    }
+
+    //
+    // Concurrency: any number of threads can run code of the same module at once, each on its own LVM
+    // (see acquireVM). Compiled code and its constants never change once compiled, so only the globals
+    // are shared state: the table of bindings is concurrent, and the value of a binding is volatile, so
+    // an assignment by one thread is seen by the next global reference in any other. Nothing makes a
+    // read-modify-write of a global atomic, though. Compiling into a module (putConstant) is serialized,
+    // and the constants array is replaced, never changed in place, as it grows. The Runtime flags are
+    // configuration, to be set before running code, not while. The AST interpreter rewrites its trees
+    // as it runs, so those are only safe to run from one thread at a time.
+    //
     public static class LModule extends var {
         String name;
         var exports;
-        HashMap<var,var> globals;
-        HashMap<var,Integer> constantsMap;
-        var [] constants;
+        ConcurrentHashMap<LSymbol,LBinding> globals;
+        HashMap<var,Integer> constantsMap; //guarded by the module
+        volatile var [] constants;
         Class<?> primitives;
+        var result; //the value of running the module, which a use evaluates to on the Ast and register engines
         LModule(String name, Class<?> primitives) {
             this.name = name;
             this.primitives = primitives;
             this.exports = NIL;
-            this.globals = new HashMap<var,var>();
-            this.globals.put(TRUE, TRUE);
-            this.globals.put(FALSE, NIL);
+            this.globals = new ConcurrentHashMap<LSymbol,LBinding>();
             this.constantsMap = new HashMap<var,Integer>();
             this.constants = new var[10];
         }
         LSymbol type() { return SYM_MODULE; }
-        public int putConstant(var val) {
+        public synchronized int putConstant(var val) {
             Integer i = constantsMap.get(val);
             if (i == null) {
                 i = constantsMap.size();
                 constantsMap.put(val, i);
-                if (i >= constants.length) {
-                    var [] tmp = new var [i * 2];
+                var [] tmp = constants;
+                if (i >= tmp.length) {
+                    tmp = new var [i * 2];
                     System.arraycopy(constants, 0, tmp, 0, i);
-                    constants = tmp;
                 }
-                constants[i] = val;
+                tmp[i] = val;
+                constants = tmp;
             }
             return i;
         }
@@ -403,20 +1002,34 @@ public class Runtime extends Notation {
         var getConstant(int idx) {
             return constants[idx];
         }
+        LBinding binding(LSymbol sym) {
+            LBinding b = globals.get(sym);
+            if (b == null) {
+                b = new LBinding(sym);
+                LBinding prev = globals.putIfAbsent(sym, b);
+                if (prev != null)
+                    b = prev;
+            }
+            return b;
+        }
         var globalValue(var sym) {
-            var val = globals.get(sym);
+            var val = global(sym);
             if (val == null)
                 error("Unbound variable: " + sym);
             return val;
         }
         var global(var sym) {
-            return globals.get(sym);
+            LBinding b = globals.get(sym);
+            return (b == null)? null : b.value;
         }
         var global(String name) {
             return global(intern(name));
         }
         var setGlobal(LSymbol sym, var value) {
-            return globals.put(sym, value);
+            LBinding b = binding(sym);
+            var prev = b.value;
+            b.set(value);
+            return prev;
         }
         var setGlobal(String name, var value) {
             return setGlobal(intern(name), value);
@@ -467,6 +1080,12 @@ public class Runtime extends Notation {
             return javaName;
         }
 
+        void definePrimitive(LSymbol sym, LPrimitive prim) {
+            LBinding b = binding(sym);
+            b.set(prim);
+            b.primitive = prim;
+        }
+
         public void definePrimitives(Object o) {
             Class<?> c = o.getClass();
             //bug: multiple arity methods get redefined, only the last is defined.
@@ -485,7 +1104,7 @@ public class Runtime extends Notation {
                         if (val != null)
                             println("*** Warning: redefining " + pname);
                         //check the argument signature. Define "primitiveN" differently than "primitive0" .. "primitive3"
-                        setGlobal(sym, new LPrimitive(pname, method, o));
+                        definePrimitive(sym, new LPrimitive(pname, method, o));
                     } else {
                         if (name.startsWith("primop_"))
                             pname = operatorName(name.substring(7));
@@ -497,7 +1116,7 @@ public class Runtime extends Notation {
                             if (val != null)
                                 println("*** Warning: redefining " + pname);
                             //check the argument signature. Define "primitiveN" differently than "primitive0" .. "primitive3"
-                            setGlobal(sym, new LPrimitiveN(pname, method, o));
+                            definePrimitive(sym, new LPrimitiveN(pname, method, o));
                         }
                     }
                 }
@@ -524,41 +1143,158 @@ public class Runtime extends Notation {
     public static LModule asModule(var mod) { if (!isModule(mod)) error("not a module", mod); return (LModule)mod; }
 
     public static var exec(var thunk) {
-        ArrayList<LSymbol> defs = new ArrayList<LSymbol>();
-        LVM vm = new LVM();
         LCode code = asCode(thunk);
-        var result = vm.exec(code, defs);
-        List<var> lst = new ArrayList<var>();
+        LVM vm = acquireVM();
+        try {
+            var result = vm.exec(code, vm.collectedDefs);
+            addExports(code.module, vm.collectedDefs);
+            return result;
+        } finally {
+            releaseVM(vm);
+        }
+    }
+
+    //the module exports what it defined in every execution so far
+    //add the globals defined to the module's exports, after the ones it already has
+    static void addExports(LModule module, List<LSymbol> defs) {
         if (defs.size() > 0) {
-            HashSet<LSymbol> syms = new HashSet<LSymbol>();
+            List<var> lst = new ArrayList<var>();
+            HashSet<var> syms = new HashSet<var>();
+            for (var exports = module.exports; exports != NIL; exports = cdr(exports)) {
+                syms.add(car(exports));
+                lst.add(car(exports));
+            }
             for (LSymbol s : defs) {
                 if (!syms.contains(s)) {
                     syms.add(s);
                     lst.add(s);
                 }
             }
-            code.module.exports = makeList(lst); //fix this. This assumes the *only* execution in a module is this one.
-        } else
-            code.module.exports = NIL;
-        return result;
+            module.exports = makeList(lst);
+        }
+    }
+
+    //
+    // Top-level forms one at a time: each form read is compiled into a thunk of its own and run before
+    // the next is read, so a long script starts running right away, and the code of the forms already
+    // run is garbage.
+    //
+
+    /** Read, compile and run the forms from the channel in the module. The last result, or null as soon as one fails. */
+    public static var execForms(LModule module, var channel) {
+        LVM vm = acquireVM();
+        try {
+            var result = NIL;
+            var expr = read(channel);
+            while (expr != EOI) {
+                result = execForm(vm, module, expr);
+                if (result == null)
+                    break;
+                expr = read(channel);
+            }
+            addExports(module, vm.collectedDefs);
+            return result;
+        } finally {
+            releaseVM(vm);
+        }
+    }
+
+    //the defs of each form are collected in the VM, and only cleared when it is released
+    private static var execForm(LVM vm, LModule module, var expr) {
+        if (verbose) println("; read: " + write(expr));
+        LCode code = asCode(new Compiler(module).compile(expr));
+        if (verbose) println("; compiled to: " + write(code));
+        return vm.exec(code, vm.collectedDefs);
+    }
+
+    //run the module from the file, form by form
+    static var runForms(LModule module, var f) {
+        if (verbose) println("; runModule: " + module.name + " from " + f);
+        var channel = open(f, READ);
+        try {
+            return execForms(module, channel);
+        } finally {
+            close(channel);
+        }
+    }
+
+    /** Read, evaluate and print forms from standard input until it ends, in a module of its own. */
+    public static void repl(Class<?> primitives) {
+        LModule module = module("repl", primitives);
+        LVM vm = acquireVM();
+        var channel = new LReaderChannel(new java.io.InputStreamReader(System.in));
+        try {
+            while (true) {
+                System.out.print("? ");
+                System.out.flush();
+                try {
+                    var expr = read(channel);
+                    if (expr == EOI)
+                        break;
+                    var result = execForm(vm, module, expr);
+                    if (result != null)
+                        println("= " + write(result));
+                } catch (Exception e) {
+                    System.err.println("*** " + e);
+                }
+                addExports(module, vm.collectedDefs);
+                vm.collectedDefs.clear();
+            }
+            System.out.println();
+        } finally {
+            releaseVM(vm);
+        }
+    }
+
+    /** Call a function, e.g. a closure defined by a module already run, with the args. Errors are thrown. */
+    public static var call(var fun, var... args) {
+        LVM vm = acquireVM();
+        try {
+            return vm.call(fun, args);
+        } finally {
+            releaseVM(vm);
+        }
+    }
+
+    //
+    // Each thread keeps the LVM it last used, so exec and call don't make a new one (and its stack) every
+    // time. A VM is only reused once it is idle: a nested exec (use of a module, say) gets a new one.
+    //
+    private static final ThreadLocal<LVM> idleVM = new ThreadLocal<LVM>();
+
+    static LVM acquireVM() {
+        if (reuseVMs) {
+            LVM vm = idleVM.get();
+            if (vm != null) {
+                idleVM.set(null);
+                return vm;
+            }
+        }
+        return new LVM();
+    }
+
+    static void releaseVM(LVM vm) {
+        if (reuseVMs) {
+            vm.clear();
+            idleVM.set(vm);
+        }
     }
 
     //-----
 
-    private static final class Frame {
-        Frame previous;
-        int pc;
-        int ops[];
+    //
+    // The heap-allocated variables of a function activation. Only functions whose frame can be captured
+    // by a closure get one; the return state of every call is kept on the VM's control stack instead.
+    //
+    static final class Frame {
         Frame locals;
         var elements[];
-        LModule module;
-        var constants[];
         @Override public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("** Frame " + this.hashCode() + ":\n");
             Frame f = this;
             while (f != null) {
-                for (var v : elements) {
+                for (var v : f.elements) {
                     sb.append("  ");
                     if (v instanceof LCode)
                         sb.append(v.getClass().getName());
@@ -566,7 +1302,7 @@ public class Runtime extends Notation {
                         sb.append(v);
                 }
                 sb.append("\n");
-                f = f.previous;
+                f = f.locals;
             }
             return sb.toString();
         }
@@ -588,15 +1324,40 @@ public class Runtime extends Notation {
         }
     }
 
+    //
+    // A builtin function. The implementing method is bound once, when the primitive is defined, to a
+    // MethodHandle with an exact (var ...)var type, so a call is a direct invokeExact: no reflection,
+    // no argument array, and no exception wrapping on the way through.
+    //
     static class LPrimitive extends LFunction {
-        Object impl;
-        Method method;
-        String name;
+        final String name;
+        final int argc; //-1 for LPrimitiveN, which takes any number
+        final MethodHandle handle;
 
         LPrimitive(String name, Method method, Object impl) {
+            this(name, method, impl, fixedArity(method), method.getParameterTypes().length);
+        }
+
+        LPrimitive(String name, Method method, Object impl, MethodType type, int argc) {
             this.name = name;
-            this.method = method;
-            this.impl = impl;
+            this.argc = argc;
+            try {
+                this.handle = MethodHandles.lookup().unreflect(method).bindTo(impl).asType(type);
+            } catch (IllegalAccessException e) {
+                throw error("Cannot access primitive " + name + ": " + e.getMessage());
+            } catch (WrongMethodTypeException e) {
+                throw error("Bad signature for primitive " + name + ": " + method);
+            }
+        }
+
+        static MethodType fixedArity(Method method) {
+            int n = method.getParameterTypes().length;
+            if (n > 5)
+                error("too many arguments for primitive: " + method);
+            Class<?> [] params = new Class<?>[n];
+            for (int i=0; i<n; i++)
+                params[i] = var.class;
+            return MethodType.methodType(var.class, params);
         }
 
         public String toString() {
@@ -604,43 +1365,48 @@ public class Runtime extends Notation {
         }
 
         public var call(var [] params, int offset, int count) {
+            if (count != argc)
+                error("Wrong number of args (" + count + ") to " + this);
             try {
                 switch (count) {
                 case 0:
-                    return (var)method.invoke(impl);
+                    return (var)handle.invokeExact();
                 case 1:
-                    return (var)method.invoke(impl, params[offset]);
+                    return (var)handle.invokeExact(params[offset]);
                 case 2:
-                    return (var)method.invoke(impl, params[offset], params[offset+1]);
+                    return (var)handle.invokeExact(params[offset], params[offset+1]);
                 case 3:
-                    return (var)method.invoke(impl, params[offset], params[offset+1], params[offset+2]);
+                    return (var)handle.invokeExact(params[offset], params[offset+1], params[offset+2]);
                 case 4:
-                    return (var)method.invoke(impl, params[offset], params[offset+1], params[offset+2], params[offset+3]);
-                case 5:
-                    return (var)method.invoke(impl, params[offset], params[offset+1], params[offset+2], params[offset+3], params[offset+4]);
+                    return (var)handle.invokeExact(params[offset], params[offset+1], params[offset+2], params[offset+3]);
                 default:
-                    error("too many arguments: " + count);
-                    return null;
+                    return (var)handle.invokeExact(params[offset], params[offset+1], params[offset+2], params[offset+3], params[offset+4]);
                 }
             } catch (error e) {
                 throw e;
-            } catch (Exception e) {
-                throw error("while executing " + LModule.ellName(method.getName()) + " : " + e.getMessage());
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw error("while executing " + name + " : " + e);
             }
         }
     }
 
     static class LPrimitiveN extends LPrimitive {
+        static final MethodType TYPE = MethodType.methodType(var.class, var[].class, int.class, int.class);
+
         LPrimitiveN(String name, Method method, Object impl) {
-            super(name, method, impl);
+            super(name, method, impl, TYPE, -1);
         }
         public var call(var [] params, int offset, int count) {
             try {
-                return (var)method.invoke(impl, params, offset, count);
+                return (var)handle.invokeExact(params, offset, count);
             } catch (error e) {
                 throw e;
-            } catch (Exception e) {
-                throw error("while executing " + LModule.ellName(method.getName()) + " : " + e.getMessage());
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw error("while executing " + name + " : " + e);
             }
         }
     }
@@ -652,14 +1418,26 @@ public class Runtime extends Notation {
 
         int [] ops; //the current ops to execute out of
         int pc; //the program counter
-        Frame environment; //the local variable frame and previous frame state
+        Frame environment; //the heap frame of the current function, or the closure's frame if its args are on the stack
         var [] constants; //the constant pool for current ops to use
         LModule module; //the module the constants and symboltable use.
+        int fp; //the stack pointer on entry to the current function. Stack-framed args are at stack[fp+j]
+        int nargs; //the number of args the current function left on the stack, popped on return
+
+        //the control stack: the caller state saved by each non-tail call
+        int csp;
+        int [] retPc = new int[32];
+        int [][] retOps = new int[32][];
+        LModule [] retModule = new LModule[32];
+        Frame [] retEnv = new Frame[32];
+        int [] retFp = new int[32];
+        int [] retArgs = new int[32];
 
         List<LSymbol> defs; //this is for capturing new global defs when loading a file, for module mgt purposes. Nothing else.
+        final ArrayList<LSymbol> collectedDefs = new ArrayList<LSymbol>(); //the list Runtime.exec collects them in
 
         LVM() {
-            stack = new var[16000];
+            stack = new var[Math.min(initialStack, maxStack)];
         }
 
         //        var exec(LCode code) {
@@ -706,27 +1484,70 @@ public class Runtime extends Notation {
         }
 		
         var exec(LCode code, List<LSymbol> collectDefs) {
-            var tmp;
-            double tmpnum;
-            boolean trace = false;
-            if (trace) System.err.println("------------------ BEGIN EXECUTION of " + code.module);
+            reset(collectDefs);
+            module = code.module;
+            constants = module.constants;
+            ops = code.ops.elements;
+            pc = 0;
+            ensureStack(ops.length);
+            return run(0);
+        }
+
+        //Call fun with the args from Java, on an empty stack. Unlike exec, errors are thrown.
+        var call(var fun, var [] args) {
+            reset(null);
+            int argc = args.length;
+            ensureStack(argc);
+            for (int i = argc - 1; i >= 0; i--)
+                stack[--sp] = args[i];
+            if (fun instanceof LClosure)
+                module = ((LClosure)fun).code.module; //what the return to Java restores
+            return apply(fun, argc);
+        }
+
+        private void reset(List<LSymbol> collectDefs) {
             defs = collectDefs;
             sp = stack.length;
+            fp = sp;
+            nargs = 0;
+            csp = 0;
+            jitDepth = 0;
+            environment = null;
+        }
 
-            environment = new Frame();
-            environment.previous = null;
-            environment.ops = null;
-            environment.pc = 0;
-            environment.locals = null;
-            environment.elements = null;
-            environment.module = null;
-            environment.constants = null;
+        //drop everything the last execution left, so an idle VM keeps nothing alive. A stack that grew
+        //goes back to the initial size.
+        void clear() {
+            if (stack.length > initialStack)
+                stack = new var[Math.min(initialStack, maxStack)];
+            else
+                Arrays.fill(stack, null);
+            if (retPc.length > 32) {
+                retPc = new int[32];
+                retOps = new int[32][];
+                retModule = new LModule[32];
+                retEnv = new Frame[32];
+                retFp = new int[32];
+                retArgs = new int[32];
+            } else {
+                Arrays.fill(retOps, null);
+                Arrays.fill(retModule, null);
+                Arrays.fill(retEnv, null);
+            }
+            ops = null;
+            module = null;
+            constants = null;
+            environment = null;
+            defs = null;
+            collectedDefs.clear();
+        }
 
-            module = code.module;
-            constants = module.constants;
-            ops = code.ops.elements;
+        //Run until the function entered at control stack depth base returns, and return its result
+        //(popped). With base 0, run to the end of the outermost code, leaving the result on the stack.
+        var run(int base) {
+            var tmp;
+            boolean trace = false;
             if (trace) System.out.println(" ops: " + showOps(ops));
-            pc = 0;
             while (true) {
                 try {
                     while (true) {
@@ -738,10 +1559,10 @@ public class Runtime extends Notation {
                             break;
                         case GLOBAL_OPCODE:
                             if (trace) System.err.println("glob\t" + constants[ops[pc+1]]);
-                            stack[--sp] = module.globals.get(constants[ops[pc+1]]);
-                            if (stack[sp] == null)
+                            tmp = ((LBinding)constants[ops[pc+1]]).value;
+                            if (tmp == null)
                                 error("Unbound variable: " + constants[ops[pc+1]]);
-
+                            stack[--sp] = tmp;
                             pc += 2;
                             break;
                         case DEFGLOBAL_OPCODE:
@@ -749,6 +1570,11 @@ public class Runtime extends Notation {
                             defGlobal(ops[pc+1], stack[sp]);
                             pc += 2;
                             break;
+                        case SETGLOBAL_OPCODE:
+                            if (trace) System.err.println("setglob\t" + constants[ops[pc+1]]);
+                            setGlobal(ops[pc+1], stack[sp]);
+                            pc += 2;
+                            break;
                         case CALL_OPCODE:
                             if (trace) System.err.println("call\t" + ops[pc+1]);
                             //check_stack();
@@ -756,20 +1582,19 @@ public class Runtime extends Notation {
                             break;
                         case TAILCALL_OPCODE:
                             if (trace) System.err.println("tcall\t" + ops[pc+1]);
-                            tailcall(stack[sp++], ops[pc+1]);
+                            if (!tailcall(stack[sp++], ops[pc+1]))
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
                             break;
                         case RETURN_OPCODE:
                             if (trace) System.err.println("ret");
-                            if (environment.previous == null) {
-                                //if (trace) System.err.println("------------------ END EXECUTION of " + code.module);
+                            if (!popFrame()) {
+                                //if (trace) System.err.println("------------------ END EXECUTION");
                                 return stack[sp];
                             }
-                            ops = environment.ops;
-                            pc = environment.pc;
-                            module = environment.module;
-                            //constants = environment.constants;
-                            constants = module.constants;
-                            environment = environment.previous;
+                            if (csp < base)
+                                return stack[sp++];
                             break;
                         case LOCAL_OPCODE:
                             if (trace) System.err.println("getloc\t" + ops[pc+1] + " " + ops[pc+2]);
@@ -798,6 +1623,16 @@ public class Runtime extends Notation {
                             }
                             pc += 3;
                             break;
+                        case ARG_OPCODE:
+                            if (trace) System.err.println("arg\t" + ops[pc+1]);
+                            stack[--sp] = stack[fp + ops[pc+1]];
+                            pc += 2;
+                            break;
+                        case SETARG_OPCODE:
+                            if (trace) System.err.println("setarg\t" + ops[pc+1]);
+                            stack[fp + ops[pc+1]] = stack[sp];
+                            pc += 2;
+                            break;
                         case POP_OPCODE:
                             if (trace) System.err.println("pop");
                             sp++;
@@ -808,6 +1643,43 @@ public class Runtime extends Notation {
                             stack[--sp] = closure(ops[pc+1], environment);
                             pc += 2;
                             break;
+                        case FLATCLOSURE_OPCODE:
+                            if (trace) System.err.println("flatclosure\t" + constants[ops[pc+1]] + " " + ops[pc+2]);
+                            {
+                                //the closure's frame holds just its free variables, so it links to nothing
+                                int n = ops[pc+2];
+                                Frame f = null;
+                                if (n > 0) {
+                                    f = new Frame();
+                                    f.elements = new var[n];
+                                    System.arraycopy(stack, sp, f.elements, 0, n);
+                                    sp += n;
+                                }
+                                stack[--sp] = new LClosure((LCode)constants[ops[pc+1]], f);
+                            }
+                            pc += 3;
+                            break;
+                        case FREE_OPCODE:
+                            if (trace) System.err.println("free\t" + ops[pc+1]);
+                            stack[--sp] = environment.elements[ops[pc+1]];
+                            pc += 2;
+                            break;
+                        case BOX_OPCODE:
+                            if (trace) System.err.println("box\t" + ops[pc+1]);
+                            stack[fp + ops[pc+1]] = new LBox(stack[fp + ops[pc+1]]);
+                            pc += 2;
+                            break;
+                        case UNBOX_OPCODE:
+                            if (trace) System.err.println("unbox");
+                            stack[sp] = ((LBox)stack[sp]).value;
+                            pc += 1;
+                            break;
+                        case SETBOX_OPCODE:
+                            if (trace) System.err.println("setbox");
+                            tmp = stack[sp++];
+                            ((LBox)tmp).value = stack[sp];
+                            pc += 1;
+                            break;
                         case JUMPFALSE_OPCODE:
                             if (trace) System.err.println("fjmp\t" + ops[pc+1]);
                             if (stack[sp++] == FALSE)
@@ -817,6 +1689,8 @@ public class Runtime extends Notation {
                             break;
                         case JUMP_OPCODE:
                             if (trace) System.err.println("jmp\t" + ops[pc+1]);
+                            if (ops[pc+1] < 0) //only lap code loops
+                                ensureStack(ops.length);
                             pc += ops[pc+1];
                             break;
                         case USE_OPCODE:
@@ -828,36 +1702,334 @@ public class Runtime extends Notation {
                             break;
                         case CAR_OPCODE:
                             if (trace) System.err.println("car");
-                            stack[sp] = car(stack[sp]);
-                            pc += 1;
+                            if (isBuiltin(ops[pc+1])) {
+                                stack[sp] = car(stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 1);
                             break;
                         case CDR_OPCODE:
                             if (trace) System.err.println("cdr");
-                            stack[sp] = cdr(stack[sp]);
-                            pc += 1;
+                            if (isBuiltin(ops[pc+1])) {
+                                stack[sp] = cdr(stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 1);
                             break;
                         case NULL_OPCODE:
                             if (trace) System.err.println("null");
-                            stack[sp] = (stack[sp] == NIL)? TRUE : FALSE;
-                            pc += 1;
+                            if (isBuiltin(ops[pc+1])) {
+                                stack[sp] = (stack[sp] == NIL)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 1);
+                            break;
+                        case NOT_OPCODE:
+                            if (trace) System.err.println("not");
+                            if (isBuiltin(ops[pc+1])) {
+                                stack[sp] = (stack[sp] == FALSE)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 1);
+                            break;
+                        case ZERO_OPCODE:
+                            if (trace) System.err.println("zero");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp];
+                                stack[sp] = (isNumber(tmp) && doubleValue(tmp) == 0)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 1);
                             break;
                         case ADD_OPCODE:
                             if (trace) System.err.println("add");
-                            tmpnum = doubleValue(stack[sp++]);
-                            stack[sp] = number(tmpnum + doubleValue(stack[sp]));
-                            pc += 1;
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = add(tmp, stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case SUB_OPCODE:
+                            if (trace) System.err.println("sub");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = subtract(tmp, stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
                             break;
                         case MUL_OPCODE:
                             if (trace) System.err.println("mul");
-                            tmpnum = doubleValue(stack[sp++]);
-                            stack[sp] = number(tmpnum * doubleValue(stack[sp]));
-                            pc += 1;
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = multiply(tmp, stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case EQ_OPCODE:
+                            if (trace) System.err.println("eq");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = equal(tmp, stack[sp])? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case LT_OPCODE:
+                            if (trace) System.err.println("lt");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = (compare(tmp, stack[sp]) < 0)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case LE_OPCODE:
+                            if (trace) System.err.println("le");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = (compare(tmp, stack[sp]) <= 0)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case GT_OPCODE:
+                            if (trace) System.err.println("gt");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = (compare(tmp, stack[sp]) == 1)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case GE_OPCODE:
+                            if (trace) System.err.println("ge");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                int c = compare(tmp, stack[sp]);
+                                stack[sp] = (c == 0 || c == 1)? TRUE : FALSE;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case CONS_OPCODE:
+                            if (trace) System.err.println("cons");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = cons(tmp, stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case VECTOR_REF_OPCODE:
+                            if (trace) System.err.println("vector-ref");
+                            if (isBuiltin(ops[pc+1])) {
+                                tmp = stack[sp++];
+                                stack[sp] = vectorRef(tmp, stack[sp]);
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 2);
+                            break;
+                        case VECTOR_SET_OPCODE:
+                            if (trace) System.err.println("vector-set");
+                            if (isBuiltin(ops[pc+1])) {
+                                vectorSet(stack[sp], stack[sp+1], stack[sp+2]);
+                                sp += 2;
+                                stack[sp] = NIL;
+                                pc += 2;
+                            } else
+                                callGlobal(ops[pc+1], 3);
+                            break;
+                        case INT_OPCODE:
+                            if (trace) System.err.println("int\t" + ops[pc+1]);
+                            stack[--sp] = number(ops[pc+1]);
+                            pc += 2;
+                            break;
+                        case ADDI_OPCODE:
+                        case SUBI_OPCODE:
+                        case EQI_OPCODE:
+                        case LTI_OPCODE:
+                        case LEI_OPCODE:
+                        case GTI_OPCODE:
+                        case GEI_OPCODE:
+                            if (trace) System.err.println("imm\t" + ops[pc] + " " + ops[pc+2]);
+                            if (isBuiltin(ops[pc+1])) {
+                                stack[sp] = immediatePrimop(ops[pc], stack[sp], ops[pc+2]);
+                                pc += 3;
+                            } else
+                                callImmediate(pc);
+                            break;
+                        case INTRETURN_OPCODE:
+                            if (trace) System.err.println("intret\t" + ops[pc+1]);
+                            stack[--sp] = number(ops[pc+1]);
+                            if (!popFrame())
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
+                            break;
+                        case ARGIMMEDIATE_OPCODE:
+                            if (trace) System.err.println("argimm\t" + ops[pc+1] + " " + ops[pc+2] + " " + ops[pc+4]);
+                            if (isBuiltin(ops[pc+3])) {
+                                stack[--sp] = immediatePrimop(ops[pc+2], stack[fp + ops[pc+1]], ops[pc+4]);
+                                pc += 5;
+                            } else {
+                                stack[--sp] = stack[fp + ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case ARGIMMEDIATEBRANCH_OPCODE:
+                            if (trace) System.err.println("argimmbranch\t" + ops[pc+1] + " " + ops[pc+2] + " " + ops[pc+4] + " " + ops[pc+6]);
+                            if (isBuiltin(ops[pc+3])) {
+                                if (immediatePrimop(ops[pc+2], stack[fp + ops[pc+1]], ops[pc+4]) == FALSE)
+                                    pc += 5 + ops[pc+6];
+                                else
+                                    pc += 7;
+                            } else {
+                                stack[--sp] = stack[fp + ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case LOCALIMMEDIATEBRANCH_OPCODE:
+                            if (trace) System.err.println("locimmbranch\t" + ops[pc+1] + " " + ops[pc+2] + " " + ops[pc+3] + " " + ops[pc+5] + " " + ops[pc+7]);
+                            {
+                                Frame tmpEnv = environment;
+                                int i = ops[pc+1];
+                                while (i > 0) {
+                                    tmpEnv = tmpEnv.locals;
+                                    i--;
+                                }
+                                tmp = tmpEnv.elements[ops[pc+2]];
+                            }
+                            if (isBuiltin(ops[pc+4])) {
+                                if (immediatePrimop(ops[pc+3], tmp, ops[pc+5]) == FALSE)
+                                    pc += 6 + ops[pc+7];
+                                else
+                                    pc += 8;
+                            } else {
+                                stack[--sp] = tmp;
+                                pc += 3;
+                            }
+                            break;
+                        case CALLGLOBAL_OPCODE:
+                            if (trace) System.err.println("callglob\t" + constants[ops[pc+1]] + " " + ops[pc+3]);
+                            tmp = ((LBinding)constants[ops[pc+1]]).value;
+                            if (tmp == null)
+                                error("Unbound variable: " + constants[ops[pc+1]]);
+                            funcall(tmp, ops[pc+3], pc+4);
+                            break;
+                        case TAILCALLGLOBAL_OPCODE:
+                            if (trace) System.err.println("tcallglob\t" + constants[ops[pc+1]] + " " + ops[pc+3]);
+                            tmp = ((LBinding)constants[ops[pc+1]]).value;
+                            if (tmp == null)
+                                error("Unbound variable: " + constants[ops[pc+1]]);
+                            if (!tailcall(tmp, ops[pc+3]))
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
+                            break;
+                        case ARGRETURN_OPCODE:
+                            if (trace) System.err.println("argret\t" + ops[pc+1]);
+                            stack[--sp] = stack[fp + ops[pc+1]];
+                            if (!popFrame())
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
+                            break;
+                        case LOCALRETURN_OPCODE:
+                            if (trace) System.err.println("locret\t" + ops[pc+1] + " " + ops[pc+2]);
+                            {
+                                Frame tmpEnv = environment;
+                                int i = ops[pc+1];
+                                while (i > 0) {
+                                    tmpEnv = tmpEnv.locals;
+                                    i--;
+                                }
+                                stack[--sp] = tmpEnv.elements[ops[pc+2]];
+                            }
+                            if (!popFrame())
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
+                            break;
+                        case LITERALRETURN_OPCODE:
+                            if (trace) System.err.println("constret\t" + constants[ops[pc+1]]);
+                            stack[--sp] = constants[ops[pc+1]];
+                            if (!popFrame())
+                                return stack[sp];
+                            if (csp < base)
+                                return stack[sp++];
+                            break;
+                        case ARGPRIMOP_OPCODE:
+                            if (trace) System.err.println("argprim\t" + ops[pc+1] + " " + ops[pc+2]);
+                            if (isBuiltin(ops[pc+3])) {
+                                stack[--sp] = unaryPrimop(ops[pc+2], stack[fp + ops[pc+1]]);
+                                pc += 4;
+                            } else {
+                                stack[--sp] = stack[fp + ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case ARGBRANCH_OPCODE:
+                            if (trace) System.err.println("argbranch\t" + ops[pc+1] + " " + ops[pc+2] + " " + ops[pc+5]);
+                            if (isBuiltin(ops[pc+3])) {
+                                if (unaryPrimop(ops[pc+2], stack[fp + ops[pc+1]]) == FALSE)
+                                    pc += 4 + ops[pc+5];
+                                else
+                                    pc += 6;
+                            } else {
+                                stack[--sp] = stack[fp + ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case LITERALARGPRIMOP_OPCODE:
+                            if (trace) System.err.println("constargprim\t" + constants[ops[pc+1]] + " " + ops[pc+3] + " " + ops[pc+4]);
+                            if (isBuiltin(ops[pc+5])) {
+                                stack[--sp] = binaryPrimop(ops[pc+4], stack[fp + ops[pc+3]], constants[ops[pc+1]]);
+                                pc += 6;
+                            } else {
+                                stack[--sp] = constants[ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case LITERALARGBRANCH_OPCODE:
+                            if (trace) System.err.println("constargbranch\t" + constants[ops[pc+1]] + " " + ops[pc+3] + " " + ops[pc+4] + " " + ops[pc+7]);
+                            if (isBuiltin(ops[pc+5])) {
+                                if (binaryPrimop(ops[pc+4], stack[fp + ops[pc+3]], constants[ops[pc+1]]) == FALSE)
+                                    pc += 6 + ops[pc+7];
+                                else
+                                    pc += 8;
+                            } else {
+                                stack[--sp] = constants[ops[pc+1]];
+                                pc += 2;
+                            }
+                            break;
+                        case LITERALLOCALBRANCH_OPCODE:
+                            if (trace) System.err.println("constlocbranch\t" + constants[ops[pc+1]] + " " + ops[pc+3] + " " + ops[pc+4] + " " + ops[pc+5] + " " + ops[pc+8]);
+                            if (isBuiltin(ops[pc+6])) {
+                                Frame tmpEnv = environment;
+                                int i = ops[pc+3];
+                                while (i > 0) {
+                                    tmpEnv = tmpEnv.locals;
+                                    i--;
+                                }
+                                if (binaryPrimop(ops[pc+5], tmpEnv.elements[ops[pc+4]], constants[ops[pc+1]]) == FALSE)
+                                    pc += 7 + ops[pc+8];
+                                else
+                                    pc += 9;
+                            } else {
+                                stack[--sp] = constants[ops[pc+1]];
+                                pc += 2;
+                            }
                             break;
                         default:
                             throw error("Bad instruction: " + ops[pc]);
                         }
                     }
                 } catch (Exception e) {
+                    if (base > 0) //a nested run, called from compiled code
+                        throw e;
                     //if the restart continuation is bound, then jump to it.
                     //else
                     //e.printStackTrace();
@@ -871,40 +2043,16 @@ public class Runtime extends Notation {
         void funcall(var fun, int argc, int savedPc) {
             if (fun instanceof LClosure) {
                 LClosure closure = (LClosure)fun;
-                Frame f = new Frame();
-                f.previous = environment;
-                f.pc = savedPc;
-                f.ops = ops;
-                f.module = module;
-                f.constants = constants;
-                f.locals = closure.frame;
-                if (closure.code.argc >= 0) {
-                    if (argc != closure.code.argc)
-                        error("Wrong number of args (" + argc + ") to " + closure);
-                    f.elements = new var[argc];
-                    if (argc > 0) {
-                        System.arraycopy(stack, sp, f.elements, 0, argc);
-                        sp += argc;
-                    }
-                } else { //rest args
-                    int nMinArgc = -closure.code.argc - 1;
-                    if (argc < nMinArgc)
-                        error("Wrong number of args (" + argc + ") to " + closure);
-                    f.elements = new var[nMinArgc + 1];
-                    System.arraycopy(stack, sp, f.elements, 0, nMinArgc);
-                    sp += argc;
-                    int nRest = argc - nMinArgc;
-                    int j = sp;
-                    var lstRest = NIL;
-                    while (nRest-- > 0)
-                        lstRest = cons(stack[--j], lstRest);
-                    f.elements[nMinArgc] = lstRest;
+                Jit.Compiled jit = closure.code.jit;
+                if (jit != null && jitDepth < MAX_JIT_DEPTH) {
+                    var o = runCompiled(jit, closure, argc);
+                    sp = sp + argc - 1;
+                    stack[sp] = o;
+                    pc = savedPc;
+                    return;
                 }
-                environment = f;
-                ops = closure.code.ops.elements;
-                module = closure.code.module;
-                constants = module.constants;
-                pc = 0;
+                pushFrame(savedPc);
+                enter(closure, argc);
             } else if (fun instanceof LPrimitive) {
                 var o = ((LPrimitive)fun).call(stack, sp, argc);
                 sp = sp + argc - 1;
@@ -914,67 +2062,192 @@ public class Runtime extends Notation {
                 if (argc != 1)
                     error("wrong number of arguments to keyword (must be 1)");
                 stack[sp] = get(stack[sp], asKeyword(fun));
+                pc = savedPc;
             } else {
                 System.out.println("fun is a " + fun);
                 error("Unhandled case in funcall");
             }
         }
 
-        final void tailcall(var fun, int argc) {
+        //returns false if the call returned from the outermost function, its result is then at stack[sp]
+        final boolean tailcall(var fun, int argc) {
+            Jit.Compiled jit = (fun instanceof LClosure)? ((LClosure)fun).code.jit : null;
+            if (jit != null && jitDepth < MAX_JIT_DEPTH) {
+                var o = runCompiled(jit, (LClosure)fun, argc);
+                sp = sp + argc - 1;
+                stack[sp] = o;
+                return popFrame();
+            } else if (fun instanceof LClosure) {
+                //the new args replace those of the current function
+                int base = fp + nargs - argc;
+                if (base != sp)
+                    System.arraycopy(stack, sp, stack, base, argc);
+                sp = base;
+                enter((LClosure)fun, argc);
+                return true;
+            } else if (fun instanceof LPrimitive) {
+                var o = ((LPrimitive)fun).call(stack, sp, argc);
+                sp = sp + argc - 1;
+                stack[sp] = o;
+                return popFrame();
+            } else if (fun instanceof LKeyword) {
+                if (argc != 1)
+                    error("wrong number of arguments to keyword (must be 1)");
+                stack[sp] = get(stack[sp], asKeyword(fun));
+                return popFrame();
+            } else
+                throw error("Unhandled case in tailcall: " + fun);
+        }
+
+        //Call fun with the argc args at stack[sp], from Java (i.e. compiled code). The args are popped.
+        var apply(var fun, int argc) {
             if (fun instanceof LClosure) {
                 LClosure closure = (LClosure)fun;
-                Frame newEnv = new Frame();
-                newEnv.previous = environment.previous;
-                newEnv.pc = environment.pc;
-                newEnv.ops = environment.ops;
-                newEnv.module = environment.module;
-                newEnv.constants = environment.constants;
-                newEnv.locals = closure.frame;
-                if (closure.code.argc >= 0) {
-                    if (argc != closure.code.argc)
-                        error("Wrong number of args (" + argc + ") to " + fun);
-                    newEnv.elements = new var[argc];
-                    System.arraycopy(stack, sp, newEnv.elements, 0, argc);
+                Jit.Compiled jit = closure.code.jit;
+                if (jit != null && jitDepth < MAX_JIT_DEPTH) {
+                    var o = runCompiled(jit, closure, argc);
                     sp += argc;
-                } else {
-                    int nMinArgc = -closure.code.argc - 1;
-                    if (argc < nMinArgc)
-                        error("Wrong number of args (" + argc + ") to " + fun);
-                    newEnv.elements = new var[nMinArgc + 1];
-                    System.arraycopy(stack, sp, newEnv.elements, 0, nMinArgc);
-                    sp += nMinArgc;
-                    var lstRest = NIL;
-                    int j = sp;
-                    while (argc-- > nMinArgc)
-                        lstRest = cons(stack[--j], lstRest);
-                    newEnv.elements[nMinArgc] = lstRest;
+                    return o;
                 }
-                ops = closure.code.ops.elements;
-                module = closure.code.module;
-                constants = module.constants;
-                pc = 0;
-                environment = newEnv;
+                pushFrame(pc);
+                enter(closure, argc);
+                return run(csp);
             } else if (fun instanceof LPrimitive) {
-                LPrimitive nProc = (LPrimitive)fun;
                 var o = ((LPrimitive)fun).call(stack, sp, argc);
-                sp = sp + argc - 1;
-                stack[sp] = o;
-                pc = environment.pc;
-                ops = environment.ops;
-                module = environment.module;
-                constants = environment.constants;
-                environment = environment.previous;
+                sp += argc;
+                return o;
             } else if (fun instanceof LKeyword) {
                 if (argc != 1)
                     error("wrong number of arguments to keyword (must be 1)");
-                stack[sp] = get(stack[sp], asKeyword(fun));
-                pc = environment.pc;
-                ops = environment.ops;
-                module = environment.module;
-                constants = environment.constants;
-                environment = environment.previous;
+                return get(stack[sp++], asKeyword(fun));
             } else
-                error("Unhandled case in tailcall: " + fun);
+                throw error("Unhandled case in apply: " + fun);
+        }
+
+        //compiled code runs on the Java stack, so only so much of it can be nested before the interpreter takes over again
+        static final int MAX_JIT_DEPTH = 400;
+        int jitDepth;
+
+        //the jit is read once by the caller, since another thread may deoptimize the code meanwhile
+        private final var runCompiled(Jit.Compiled jit, LClosure closure, int argc) {
+            jitDepth++;
+            var o = jit.run(this, closure, argc);
+            jitDepth--;
+            return o;
+        }
+
+        //bind the args at stack[sp] and start executing the closure
+        private final void enter(LClosure closure, int argc) {
+            LCode code = closure.code;
+            if (jitThreshold > 0 && code.stackFrame && ++code.calls == jitThreshold)
+                Jit.compile(code);
+            if (code.stackFrame) {
+                if (argc != code.argc)
+                    error("Wrong number of args (" + argc + ") to " + closure);
+                environment = closure.frame;
+                nargs = argc;
+            } else {
+                Frame f = new Frame();
+                f.locals = closure.frame;
+                if (code.argc >= 0) {
+                    if (argc != code.argc)
+                        error("Wrong number of args (" + argc + ") to " + closure);
+                    f.elements = new var[argc];
+                    if (argc > 0) {
+                        System.arraycopy(stack, sp, f.elements, 0, argc);
+                        sp += argc;
+                    }
+                } else { //rest args
+                    int nMinArgc = -code.argc - 1;
+                    if (argc < nMinArgc)
+                        error("Wrong number of args (" + argc + ") to " + closure);
+                    f.elements = new var[nMinArgc + 1];
+                    System.arraycopy(stack, sp, f.elements, 0, nMinArgc);
+                    sp += argc;
+                    int nRest = argc - nMinArgc;
+                    int j = sp;
+                    var lstRest = NIL;
+                    while (nRest-- > 0)
+                        lstRest = cons(stack[--j], lstRest);
+                    f.elements[nMinArgc] = lstRest;
+                }
+                environment = f;
+                nargs = 0;
+            }
+            fp = sp;
+            ops = code.ops.elements;
+            module = code.module;
+            constants = module.constants;
+            pc = 0;
+            ensureStack(ops.length);
+        }
+
+        //Make room for n more values on the stack. Each op pushes at most one value per cell it takes, and
+        //jumps only go forward, so code that has room for its length on entry cannot overflow the stack.
+        final void ensureStack(int n) {
+            if (sp < n)
+                growStack(n);
+        }
+
+        //the stack is push-down, so its contents move to the top of the new one, and everything that
+        //points into it moves with them
+        private void growStack(int n) {
+            int used = stack.length - sp;
+            if ((long)used + n > maxStack)
+                throw error("Stack overflow");
+            int size = (int)Math.min(Math.max(stack.length * 2L, (long)used + n), maxStack);
+            var [] s = new var[size];
+            int delta = size - stack.length;
+            System.arraycopy(stack, sp, s, sp + delta, used);
+            stack = s;
+            sp += delta;
+            fp += delta;
+            for (int i = 0; i < csp; i++)
+                retFp[i] += delta;
+        }
+
+        private final void pushFrame(int savedPc) {
+            if (csp == retPc.length) {
+                if (csp >= maxStack)
+                    error("Stack overflow");
+                growControlStack();
+            }
+            retPc[csp] = savedPc;
+            retOps[csp] = ops;
+            retModule[csp] = module;
+            retEnv[csp] = environment;
+            retFp[csp] = fp;
+            retArgs[csp] = nargs;
+            csp++;
+        }
+
+        //return the value at stack[sp] to the caller, in place of the args. False if there is no caller.
+        private final boolean popFrame() {
+            if (csp == 0)
+                return false;
+            var result = stack[sp];
+            sp = fp + nargs - 1;
+            stack[sp] = result;
+            csp--;
+            pc = retPc[csp];
+            ops = retOps[csp];
+            module = retModule[csp];
+            constants = module.constants;
+            environment = retEnv[csp];
+            retEnv[csp] = null;
+            fp = retFp[csp];
+            nargs = retArgs[csp];
+            return true;
+        }
+
+        private void growControlStack() {
+            int n = retPc.length * 2;
+            retPc = Arrays.copyOf(retPc, n);
+            retOps = Arrays.copyOf(retOps, n);
+            retModule = Arrays.copyOf(retModule, n);
+            retEnv = Arrays.copyOf(retEnv, n);
+            retFp = Arrays.copyOf(retFp, n);
+            retArgs = Arrays.copyOf(retArgs, n);
         }
 
         private final var closure(int i, Frame env) {
@@ -982,49 +2255,152 @@ public class Runtime extends Notation {
             return new LClosure((LCode)constants[i], env);
         }
 
-        private final var getGlobal(int i) {
-            var sym = constants[i];
-            //var val = module.global(sym);
-            var val = module.globals.get(sym);
-            if (val == null)
-                error("Unbound variable: " + sym);
-            return val;
+        //true if the global referenced by a primop still holds the builtin it inlines
+        private final boolean isBuiltin(int i) {
+            LBinding b = (LBinding)constants[i];
+            return b.value == b.primitive && b.value != null;
+        }
+
+        //the fast path of a fused primop, with the same semantics as the primop instruction
+        static var unaryPrimop(int opcode, var x) {
+            switch (opcode) {
+            case CAR_OPCODE:
+                return car(x);
+            case CDR_OPCODE:
+                return cdr(x);
+            case NULL_OPCODE:
+                return (x == NIL)? TRUE : FALSE;
+            case NOT_OPCODE:
+                return (x == FALSE)? TRUE : FALSE;
+            default: //ZERO_OPCODE
+                return (isNumber(x) && doubleValue(x) == 0)? TRUE : FALSE;
+            }
+        }
+
+        //x is the first arg, the one that was on top of the stack
+        static var binaryPrimop(int opcode, var x, var y) {
+            switch (opcode) {
+            case ADD_OPCODE:
+                return add(x, y);
+            case SUB_OPCODE:
+                return subtract(x, y);
+            case MUL_OPCODE:
+                return multiply(x, y);
+            case EQ_OPCODE:
+                return equal(x, y)? TRUE : FALSE;
+            case LT_OPCODE:
+                return (compare(x, y) < 0)? TRUE : FALSE;
+            case LE_OPCODE:
+                return (compare(x, y) <= 0)? TRUE : FALSE;
+            case GT_OPCODE:
+                return (compare(x, y) == 1)? TRUE : FALSE;
+            case GE_OPCODE: {
+                int c = compare(x, y);
+                return (c == 0 || c == 1)? TRUE : FALSE;
+            }
+            case CONS_OPCODE:
+                return cons(x, y);
+            default: //VECTOR_REF_OPCODE
+                return vectorRef(x, y);
+            }
+        }
+
+        //the slow path of a primop: call the current value of the global with the args already on the stack
+        private final void callGlobal(int i, int argc) {
+            callGlobal(i, argc, pc + 2);
+        }
+
+        private final void callGlobal(int i, int argc, int next) {
+            LBinding b = (LBinding)constants[i];
+            if (b.value == null)
+                error("Unbound variable: " + b.sym);
+            funcall(b.value, argc, next);
+        }
+
+        //the slow path of the immediate primop at pc: push the immediate as the second arg, and call
+        private final void callImmediate(int pc) {
+            var x = stack[sp];
+            stack[sp] = number(ops[pc+2]);
+            stack[--sp] = x;
+            callGlobal(ops[pc+1], 2, pc + 3);
+        }
+
+        //the fast path of an immediate primop. Integers are done here, anything else as the primop does it.
+        static var immediatePrimop(int opcode, var x, int n) {
+            if (x instanceof LInteger) {
+                long a = ((LInteger)x).value;
+                switch (opcode) {
+                case ADDI_OPCODE: {
+                    long r = a + n;
+                    if (((a ^ r) & (n ^ r)) >= 0)
+                        return number(r);
+                    break;
+                }
+                case SUBI_OPCODE: {
+                    long r = a - n;
+                    if (((a ^ n) & (a ^ r)) >= 0)
+                        return number(r);
+                    break;
+                }
+                case EQI_OPCODE:
+                    return (a == n)? TRUE : FALSE;
+                case LTI_OPCODE:
+                    return (a < n)? TRUE : FALSE;
+                case LEI_OPCODE:
+                    return (a <= n)? TRUE : FALSE;
+                case GTI_OPCODE:
+                    return (a > n)? TRUE : FALSE;
+                default: //GEI_OPCODE
+                    return (a >= n)? TRUE : FALSE;
+                }
+            }
+            return binaryPrimop(IMMEDIATE_PRIMOPS[immediateIndex(opcode)], x, number(n));
         }
 
         private final void defGlobal(int i, var val) {
-            LSymbol sym = (LSymbol)constants[i];
-            module.setGlobal(sym, val);
+            LBinding b = (LBinding)constants[i];
+            b.set(val);
             if (defs != null)
-                defs.add(sym);
+                defs.add(b.sym);
         }
 
         private final void setGlobal(int i, var val) {
-            LSymbol sym = (LSymbol)constants[i];
-            var prev = module.global(sym);
-            if (prev == null)
-                error("Unbound variable: " + sym);
-            module.setGlobal(sym, val);
+            LBinding b = (LBinding)constants[i];
+            if (b.value == null)
+                error("Unbound variable: " + b.sym);
+            b.set(val);
         }
 
         private void useModule(var sym) {
-            String filename = symbolName(sym);
-            LCode thunk = asCode(loadModule(filename, module.primitives));
-            var result = Runtime.exec(thunk);
-            var exports = thunk.module.getExports();
-            while (exports != NIL) {
-                LSymbol export = asSymbol(car(exports));
-                var val = thunk.module.global(export);
-                module.setGlobal(export, val);
-                exports = cdr(exports);
-            }
+            importModule("lvm", module, symbolName(sym), RUNNER);
         }
 
+        static final ModuleRunner RUNNER = new ModuleRunner() {
+                LModule run(String name, var file, Class<?> primitives) {
+                    if (cacheModules) {
+                        LCode thunk = asCode(loadModule(name, file, primitives));
+                        return (Runtime.exec(thunk) == null)? null : thunk.module;
+                    }
+                    LModule module = module(name, primitives);
+                    return (runForms(module, file) == null)? null : module;
+                }
+            };
+
     }
 
     public static var runModule(String name, Class<?> primitives) {
-        var code = loadModule(name, primitives);
-        if (verbose) println("; begin execution");
-        var result = exec(code);
+        if (astInterpreter)
+            return Ast.runModule(name, primitives);
+        if (registerMachine)
+            return Registers.runModule(name, primitives);
+        var result;
+        if (cacheModules) { //the image is of the whole module thunk
+            var code = loadModule(name, primitives);
+            if (verbose) println("; begin execution");
+            result = exec(code);
+        } else {
+            result = runForms(module(name, primitives), resolveModule(name));
+        }
         if (verbose) {
             if (result != null) {
                 println("; => " + result);
@@ -1034,16 +2410,203 @@ public class Runtime extends Notation {
     }
 
     public static var loadModule(String name, Class<?> primitives) {
+        return loadModule(name, resolveModule(name), primitives);
+    }
+
+    //the source of the named module, as one (begin ...) form
+    static var readModule(String name) {
+        return readSource(resolveModule(name));
+    }
+
+    //the file of the named module: a path if it has an extension, else found on the ELL_PATH
+    static var resolveModule(String name) {
         var f = (name.indexOf('.') > 0)? file(name) : findModule(name);
-        if (f == NIL)
+        if (f == null || f == NIL)
             error("module not found: " + name);
-        return loadModule(name, f, primitives);
+        return f;
+    }
+
+    //
+    // The module registry. A module that is used is loaded and run once, by the engine running the code
+    // that uses it, and every later use of the same file (with the same engine and primitives) shares
+    // it. The registry is locked only to look up and add its entries: the first use adds an entry and
+    // runs the module outside the lock, and other threads that use it meanwhile wait for that. Each
+    // thread's modules being loaded form a chain, and a use of one of them is a cycle, as is a wait that
+    // would close a loop of threads waiting for each other's modules.
+    //
+    static abstract class ModuleRunner {
+        //load and run the module from the file, and return it. Null if running it failed.
+        abstract LModule run(String name, var file, Class<?> primitives);
+    }
+
+    private static final class ModuleEntry {
+        final String name;
+        final Thread loader = Thread.currentThread();
+        final ModuleEntry user; //the module the loader was loading when it used this one, if any
+        final CountDownLatch loaded = new CountDownLatch(1);
+        volatile LModule module; //null until loaded, and if it failed
+        ModuleEntry waitingFor; //when the loader is waiting with this as its innermost module, locked by modules
+        ModuleEntry(String name, ModuleEntry user) {
+            this.name = name;
+            this.user = user;
+        }
+    }
+
+    private static final HashMap<String,ModuleEntry> modules = new HashMap<String,ModuleEntry>();
+    private static final HashMap<Thread,ModuleEntry> waiting = new HashMap<Thread,ModuleEntry>(); //the innermost module of each waiting thread
+    private static final ThreadLocal<ModuleEntry> loading = new ThreadLocal<ModuleEntry>(); //the innermost module this thread is loading
+
+    static LModule useModule(String engine, String name, Class<?> primitives, ModuleRunner runner) {
+        var f = resolveModule(name);
+        String path;
+        try {
+            path = asFile(f).handle.getCanonicalPath();
+        } catch (java.io.IOException e) {
+            throw error("module not found: " + name);
+        }
+        String key = engine + " " + ((primitives == null)? "" : primitives.getName()) + " " + path;
+        ModuleEntry inner = loading.get();
+        ModuleEntry entry;
+        synchronized (modules) {
+            entry = modules.get(key);
+            if (entry == null) {
+                entry = new ModuleEntry(name, inner);
+                modules.put(key, entry);
+            } else if (entry.module != null) {
+                return entry.module;
+            } else {
+                String cycle = cycle(entry);
+                if (cycle != null)
+                    throw error("Cyclic use of module: " + cycle + name);
+                if (inner != null) {
+                    inner.waitingFor = entry;
+                    waiting.put(Thread.currentThread(), inner);
+                }
+            }
+        }
+        if (entry.loader != Thread.currentThread())
+            return awaitModule(entry, inner, name);
+        LModule module = null;
+        loading.set(entry);
+        try {
+            module = runner.run(name, f, primitives);
+            entry.module = module;
+        } finally {
+            loading.set(inner);
+            if (module == null) {
+                synchronized (modules) {
+                    if (modules.get(key) == entry)
+                        modules.remove(key);
+                }
+            }
+            entry.loaded.countDown();
+        }
+        if (module == null)
+            error("Cannot use module: " + name);
+        return module;
+    }
+
+    private static LModule awaitModule(ModuleEntry entry, ModuleEntry inner, String name) {
+        try {
+            entry.loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error("Interrupted using module: " + name);
+        } finally {
+            if (inner != null) {
+                synchronized (modules) {
+                    inner.waitingFor = null;
+                    waiting.remove(Thread.currentThread());
+                }
+            }
+        }
+        if (entry.module == null)
+            error("Cannot use module: " + name);
+        return entry.module;
+    }
+
+    //"a -> b -> " if waiting for the module being loaded would wait for this thread, else null. Locked by modules.
+    private static String cycle(ModuleEntry entry) {
+        StringBuilder cycle = new StringBuilder();
+        ModuleEntry inner;
+        for (ModuleEntry e = entry; ; e = inner.waitingFor) {
+            Thread t = e.loader;
+            inner = (t == Thread.currentThread())? loading.get() : waiting.get(t);
+            if (inner == null)
+                return null; //that thread is running its module, which will finish or use another
+            ArrayList<String> names = new ArrayList<String>();
+            for (ModuleEntry m = inner; m != e && m != null; m = m.user)
+                names.add(m.name);
+            names.add(e.name);
+            for (int i = names.size() - 1; i >= 0; i--)
+                cycle.append(names.get(i) + " -> ");
+            if (t == Thread.currentThread())
+                return cycle.toString();
+        }
+    }
+
+    //use the module, with the engine, and define its exports as globals of the module that uses it
+    static LModule importModule(String engine, LModule module, String name, ModuleRunner runner) {
+        LModule used = useModule(engine, name, module.primitives, runner);
+        for (var exports = used.getExports(); exports != NIL; exports = cdr(exports)) {
+            LSymbol export = asSymbol(car(exports));
+            module.setGlobal(export, used.global(export));
+        }
+        return used;
+    }
+
+    /** Forget the modules loaded so far, so the next use of each loads and runs it again. */
+    public static void clearModules() {
+        synchronized (modules) {
+            modules.clear();
+        }
+    }
+
+    static var readSource(var f) {
+        var channel = open(f, READ);
+        ArrayList<var> forms = new ArrayList<var>();
+        try {
+            var expr = read(channel);
+            while (expr != EOI) {
+                forms.add(expr);
+                expr = read(channel);
+            }
+        } finally {
+            close(channel);
+        }
+        return cons(intern("begin"), makeList(forms));
+    }
+
+    private static volatile String [] modulePath;
+    //the names of the files in each directory of the path, listed once
+    private static final ConcurrentHashMap<String,Set<String>> directories = new ConcurrentHashMap<String,Set<String>>();
+
+    /** Set the directories findModule searches, separated by ':' like ELL_PATH, which is the default. They are listed again. */
+    public static void setModulePath(String path) {
+        modulePath = (path == null)? null : path.split(":");
+        directories.clear();
     }
 
     static String [] getPath() {
-        String spath = System.getenv("ELL_PATH");
-        if (spath == null) spath = ".:src/main/ell";
-        return spath.split(":");
+        String [] path = modulePath;
+        if (path == null) {
+            String spath = System.getenv("ELL_PATH");
+            if (spath == null) spath = ".:src/main/ell";
+            modulePath = path = spath.split(":");
+        }
+        return path;
+    }
+
+    private static Set<String> listDirectory(String dirname) {
+        Set<String> names = directories.get(dirname);
+        if (names == null) {
+            String [] files = new File(dirname).list();
+            names = (files == null)? Collections.<String>emptySet() : new HashSet<String>(Arrays.asList(files));
+            Set<String> prev = directories.putIfAbsent(dirname, names);
+            if (prev != null)
+                names = prev;
+        }
+        return names;
     }
 
     public static var findModule(String moduleName) {
@@ -1051,36 +2614,34 @@ public class Runtime extends Notation {
         if (name.startsWith("..") || name.startsWith("/")) {
             return file(name);
         }
-        String [] path = getPath();
-        for (String dirname : path) {
-            File dir = new File(dirname);
-            if (dir.exists()) {
-                for (String f : dir.list()) {
-                    if (name.equals(f))
-                        return file(new File(dir, f).toString());
-                }
-            }
+        for (String dirname : getPath()) {
+            if (listDirectory(dirname).contains(name))
+                return file(new File(dirname, name).toString());
         }
         return null;
     }
 
     public static var loadModule(String moduleName, var f, Class<?> primitives) {
         if (verbose) println("; loadModule: " + moduleName + " from " + f);
+        if (cacheModules && isFile(f)) {
+            LCode cached = ModuleCache.load(moduleName, asFile(f).handle, primitives);
+            if (cached != null)
+                return cached;
+        }
         LModule module = module(moduleName, primitives);
         var channel = open(f, READ);
-        var source = list(intern("begin"));
-        var expr = read(channel);
-        while (expr != EOI) {
-            source = concat(source, list(expr));
-            expr = read(channel);
-        }
-        close(channel);
-        if (verbose) println("; read: " + write(source));
-        var code = new Compiler(module).compile(source);
+        var code;
+        try {
+            code = new Compiler(module).compileForms(channel);
+        } finally {
+            close(channel);
+        }
         if (verbose) {
             println("; compiled to: " + write(code));
             println("; module: " + module);
         }
+        if (cacheModules && isFile(f))
+            ModuleCache.save(asCode(code), asFile(f).handle, primitives);
         return code;
     }
 
@@ -1,7 +1,8 @@
 import org.junit.Test;
 import static org.junit.Assert.*;
-import static org.jelled.Ell.*;
-import static org.jelled.Runtime.*;
+import ell.Data.var;
+import ell.Data.error;
+import static ell.Primitives.*;
 import java.io.FileReader;
 
 public class TestReader {
@@ -57,6 +58,127 @@ public class TestReader {
         assertTrue(equal(d1, d2));
     }
 
+    @Test
+    public void testReadNumbers() {
+        assertTrue(isInteger(read(string("23"))));
+        assertTrue(isInteger(read(string("-23"))));
+        assertFalse(isInteger(read(string("23.0"))));
+        assertFalse(isInteger(read(string("2e3"))));
+        assertEquals(9007199254740993L, longValue(read(string("9007199254740993"))));
+        var big = read(string("123456789012345678901234567890"));
+        assertTrue(isInteger(big));
+        assertEquals("123456789012345678901234567890", write(big).toString());
+        assertTrue(isSymbol(read(string("-"))));
+        assertTrue(isSymbol(read(string("1+"))));
+        assertTrue(isSymbol(read(string("x1"))));
+        assertEquals(0.125, doubleValue(read(string("1.25e-1"))), 0);
+        assertEquals(-0.5, doubleValue(read(string("-.5"))), 0);
+        assertEquals(255L, longValue(read(string("#xff"))));
+        assertEquals(-8L, longValue(read(string("#o-10"))));
+        assertEquals(5L, longValue(read(string("#b101"))));
+    }
+
+    @Test
+    public void testReadAtoms() {
+        assertTrue(equal(keyword("foo"), read(string("foo:"))));
+        assertTrue(equal(keyword("foo"), read(string(":foo"))));
+        assertTrue(equal(list(intern("a"), 1, keyword("b"), string("c\nd")), read(string("(a 1 b: \"c\\nd\")"))));
+        //tokens longer than the reader's buffer
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            name.append((char)('a' + i % 26));
+        var data = read(string("[" + name + " \"" + name + "\" " + name + ":]"));
+        assertTrue(equal(vector(intern(name.toString()), string(name.toString()), keyword(name.toString())), data));
+    }
+
+    @Test
+    public void testReadFile() throws java.io.IOException {
+        java.io.File f = java.io.File.createTempFile("utf8", ".ell");
+        try {
+            java.nio.file.Files.write(f.toPath(), "(\"\u00e5\u20ac\ud834\udd1e\" 1) [2]".getBytes("UTF-8"));
+            var channel = open(file(f.getPath()), READ);
+            try {
+                assertTrue(equal(list(string("\u00e5\u20ac\ud834\udd1e"), 1), read(channel)));
+                assertTrue(equal(vector(2), read(channel)));
+                assertTrue(read(channel) == EOI);
+            } finally {
+                close(channel);
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testReadFileSurrogates() throws java.io.IOException {
+        //a supplementary char (a surrogate pair) where the reader's 8192 char buffer has one slot left
+        java.io.File f = java.io.File.createTempFile("utf8", ".ell");
+        try {
+            for (int n = 8189; n <= 8193; n++) {
+                StringBuilder text = new StringBuilder("\"");
+                for (int i = 0; i < n; i++)
+                    text.append('a');
+                text.append("\ud83d\ude00\"");
+                java.nio.file.Files.write(f.toPath(), text.toString().getBytes("UTF-8"));
+                assertTrue(equal(string(text.substring(1, text.length() - 1)), read(file(f.getPath()))));
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testElements() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < 100000; i++)
+            text.append(i).append(' ');
+        text.append("] {a: (1 2 3) b: [x ; comment\n y] c: 4} end");
+        var channel = new ell.Notation.LReaderChannel(new java.io.StringReader(text.toString()));
+        long sum = 0;
+        for (java.util.Iterator<var> it = elements(channel); it.hasNext(); )
+            sum += longValue(it.next());
+        assertEquals(4999950000L, sum);
+        ell.Notation.LElements map = elements(channel);
+        assertTrue(equal(keyword("a"), map.next()));
+        ell.Notation.LElements lst = map.elements();
+        assertEquals(1L, longValue(lst.next()));
+        assertTrue(equal(keyword("b"), map.next())); //the rest of (1 2 3) is skipped
+        ell.Notation.LElements vec = map.elements();
+        assertTrue(equal(intern("x"), vec.next()));
+        assertTrue(equal(intern("y"), vec.next()));
+        assertFalse(vec.hasNext());
+        assertTrue(equal(keyword("c"), map.next()));
+        assertEquals(4L, longValue(map.next()));
+        assertFalse(map.hasNext());
+        assertTrue(equal(intern("end"), read(channel)));
+    }
+
+    @Test
+    public void testReadForms() throws java.io.IOException {
+        java.io.File f = java.io.File.createTempFile("forms", ".elldn");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; text.length() < (3 << 20); i++)
+                text.append("{n: " + i + " s: \"a (string ; " + i + "\" q: 'x" + i + "} ; ) comment\n");
+            java.nio.file.Files.write(f.toPath(), text.toString().getBytes("UTF-8"));
+            var forms = readForms(file(f.getPath()), 4);
+            var channel = open(file(f.getPath()), READ);
+            try {
+                for (var form = read(channel); form != EOI; form = read(channel)) {
+                    assertTrue(equal(form, car(forms)));
+                    forms = cdr(forms);
+                }
+            } finally {
+                close(channel);
+            }
+            assertTrue(forms == NIL);
+            assertTrue(equal(readForms(file(f.getPath()), 1), readForms(file(f.getPath()), 0)));
+            assertTrue(equal(readForms(file(f.getPath()), 1), readForms(file(f.getPath()), -1)));
+        } finally {
+            f.delete();
+        }
+    }
+
     @Test
     public void testReadWrite() {
         try {
@@ -1,13 +1,254 @@
 import org.junit.Test;
 import static org.junit.Assert.*;
-import static org.jelled.Ell.*;
+import ell.Data.var;
+import ell.Data.error;
+import static ell.Primitives.*;
+import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
 public class TestRuntime {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    //the results of the test programs, which every engine and setting must agree on
+    static final var PRIMOPS = list(2, 3, 4, 30);
+    static final var SUPERINSTRUCTIONS = list(610, 3, 5, 1, 3, 5, 0);
+    static final var IMMEDIATES = list(2000, TRUE, TRUE, 2.5, TRUE, TRUE, 6, -3);
+    static final var FRAMES = list(100000, 3, 36, FALSE, 12, 5);
+    static final var JIT = list(500500, 5000, 12, 25, 0);
+    static final var CLOSURES = list(3, 2, 13, 6);
+
+    //run the program in src/test/resources and check its result
+    private static void assertRuns(var expected, String program) {
+        var result = runModule("src/test/resources/" + program, ell.Primitives.class);
+        assertTrue(program + " returned " + result, equal(expected, result));
+    }
+
+    //the same, with the Runtime setting of that name set to value, and then back
+    private static void assertRuns(var expected, String program, String setting, Object value) throws Exception {
+        java.lang.reflect.Field f = ell.Runtime.class.getField(setting);
+        Object saved = f.get(null);
+        f.set(null, value);
+        try {
+            assertRuns(expected, program);
+        } finally {
+            f.set(null, saved);
+        }
+    }
+
     @Test
     public void testBenchmark() {
-        runModule("src/main/scm/benchx.scm", new EllPrimitives());
+        runModule("src/main/scm/benchx.scm", ell.Primitives.class);
+    }
+
+    @Test
+    public void testGlobals() {
+        assertRuns(list(1, 2, 3), "globals.ell");
+    }
+
+    @Test
+    public void testPrimops() {
+        assertRuns(PRIMOPS, "primops.ell");
+    }
+
+    @Test
+    public void testSuperinstructions() throws Exception {
+        assertRuns(SUPERINSTRUCTIONS, "superinstructions.ell");
+        assertRuns(SUPERINSTRUCTIONS, "superinstructions.ell", "superinstructions", false);
+    }
+
+    @Test
+    public void testImmediates() throws Exception {
+        assertRuns(IMMEDIATES, "immediates.ell");
+        assertRuns(IMMEDIATES, "immediates.ell", "jitThreshold", 2);
+    }
+
+    @Test
+    public void testStack() {
+        var result = runModule("src/test/resources/stack.ell", ell.Primitives.class);
+        assertTrue(equal(list(100000, 1250025000), result));
+        int max = ell.Runtime.maxStack;
+        ell.Runtime.maxStack = 10000;
+        try {
+            assertNull(runModule("src/test/resources/stack.ell", ell.Primitives.class));
+            ell.Runtime.LModule module = ell.Runtime.module("stack", ell.Primitives.class);
+            var count = execForms(module, forms("(define count (lambda (n) (if (= n 0) 0 (+ 1 (count (- n 1))))))\ncount"));
+            assertEquals(1000L, longValue(call(count, number(1000))));
+            try {
+                call(count, number(100000));
+                fail("recursion past maxStack should throw an error");
+            } catch (error e) {
+                assertEquals("Stack overflow", e.getMessage());
+            }
+        } finally {
+            ell.Runtime.maxStack = max;
+        }
+    }
+
+    @Test
+    public void testCall() {
+        var f = runModule("src/test/resources/call.ell", ell.Primitives.class);
+        assertTrue(equal(list(55, intern("x"), 1), call(f, number(10), intern("x"))));
+        assertTrue(equal(list(610, intern("y"), 2), call(f, number(15), intern("y"))));
+        try {
+            call(f, number(1));
+            fail("expected an error for the wrong number of args");
+        } catch (error e) {
+        }
+        //the VM is reusable after an error
+        assertTrue(equal(list(1, NIL, 3), call(f, number(1), NIL)));
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        ell.Runtime.jitThreshold = 50;
+        try {
+            final var f = runModule("src/test/resources/concurrent.ell", ell.Primitives.class);
+            final var expected = list(610, 1500);
+            final boolean [] ok = new boolean[8];
+            Thread [] threads = new Thread[ok.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int t = i;
+                threads[i] = new Thread() {
+                        public void run() {
+                            boolean same = true;
+                            for (int j = 0; j < 200; j++)
+                                same &= equal(expected, call(f, number(15)));
+                            ok[t] = same;
+                        }
+                    };
+                threads[i].start();
+            }
+            for (Thread t : threads)
+                t.join();
+            for (boolean b : ok)
+                assertTrue(b);
+        } finally {
+            ell.Runtime.jitThreshold = 0;
+        }
+    }
+
+    @Test
+    public void testModuleCache() throws IOException {
+        File source = tmp.newFile("cached.ell");
+        writeFile(source, "(define sq (lambda (x) (* x x)))\n(list (sq 12) 2.5 \"s\" 'sym '(1 [2] {a: 3}) '(2.0 [3.0] {b: 4.0}))");
+        var expected = list(144, 2.5, string("s"), intern("sym"), list(1, vector(2), read(string("{a: 3}"))), read(string("(2.0 [3.0] {b: 4.0})")));
+        ell.Runtime.cacheModules = true;
+        try {
+            var result = runModule(source.getPath(), ell.Primitives.class);
+            assertTrue(equal(expected, result));
+            File image = new File(tmp.getRoot(), "cached.ellc");
+            assertTrue(image.exists());
+            long saved = image.lastModified();
+            var loaded = runModule(source.getPath(), ell.Primitives.class);
+            assertTrue(equal(expected, loaded));
+            assertEquals(result.toString(), loaded.toString()); //the same types too: the quoted doubles are not integers
+            assertEquals(saved, image.lastModified()); //loaded, not saved again
+            //a changed source is compiled again, even within the same mtime tick
+            writeFile(source, "(define sq (lambda (x) (* x x)))\n(sq 11)");
+            assertTrue(equal(number(121), runModule(source.getPath(), ell.Primitives.class)));
+        } finally {
+            ell.Runtime.cacheModules = false;
+        }
+    }
+
+    private static void writeFile(File f, String s) throws IOException {
+        try (FileWriter w = new FileWriter(f)) {
+            w.write(s);
+        }
+    }
+
+    @Test
+    public void testForms() {
+        ell.Runtime.LModule module = ell.Runtime.module("forms", ell.Primitives.class);
+        var result = execForms(module, forms("(define a 1)\n(define b (+ a 1))\n(car 1)\n(define c 3)\n"));
+        assertNull(result); //stopped at (car 1), after running the forms before it
+        assertTrue(equal(list(1, 2), execForms(module, forms("(list a b)"))));
+        assertNull(execForms(module, forms("c")));
+    }
+
+    private static var forms(String text) {
+        return new ell.Notation.LReaderChannel(new java.io.StringReader(text));
+    }
+
+    @Test
+    public void testModules() {
+        setModulePath("src/test/resources/modules");
+        try {
+            var result = runModule("src/test/resources/modules/diamond.ell", ell.Primitives.class);
+            assertTrue(equal(list(TRUE, 1), result));
+            assertNull(runModule("src/test/resources/modules/cyclea.ell", ell.Primitives.class));
+        } finally {
+            setModulePath(null);
+            clearModules();
+        }
+    }
+
+    @Test
+    public void testModuleThreads() throws Exception {
+        setModulePath("src/test/resources/modules");
+        try {
+            final String [] files = {"diamond", "diamond", "diamond", "diamond", "cyclea", "cycleb"};
+            final var [] results = new var[files.length];
+            Thread [] threads = new Thread[files.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int t = i;
+                threads[i] = new Thread() {
+                        public void run() {
+                            results[t] = runModule("src/test/resources/modules/" + files[t] + ".ell", ell.Primitives.class);
+                        }
+                    };
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join(60000);
+                assertFalse("deadlocked using modules", t.isAlive());
+            }
+            for (int i = 0; i < 4; i++)
+                assertTrue(equal(list(TRUE, 1), results[i]));
+            assertNull(results[4]);
+            assertNull(results[5]);
+        } finally {
+            setModulePath(null);
+            clearModules();
+        }
+    }
+
+    @Test
+    public void testFrames() {
+        assertRuns(FRAMES, "frames.ell");
+    }
+
+    @Test
+    public void testJit() throws Exception {
+        assertRuns(JIT, "jit.ell", "jitThreshold", 2);
+        assertRuns(FRAMES, "frames.ell", "jitThreshold", 2);
+    }
+
+    @Test
+    public void testRegisters() throws Exception {
+        assertRuns(FRAMES, "frames.ell", "registerMachine", true);
+        assertRuns(CLOSURES, "closures.ell", "registerMachine", true);
+        assertRuns(PRIMOPS, "primops.ell", "registerMachine", true);
+        assertRuns(SUPERINSTRUCTIONS, "superinstructions.ell", "registerMachine", true);
+    }
+
+    @Test
+    public void testAst() throws Exception {
+        assertRuns(FRAMES, "frames.ell", "astInterpreter", true);
+        assertRuns(PRIMOPS, "primops.ell", "astInterpreter", true);
+        assertRuns(JIT, "jit.ell", "astInterpreter", true);
+    }
+
+    @Test
+    public void testFlatClosures() throws Exception {
+        assertRuns(FRAMES, "frames.ell", "flatClosures", true);
+        assertRuns(CLOSURES, "closures.ell", "flatClosures", true);
     }
 
 }
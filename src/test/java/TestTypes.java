@@ -1,6 +1,8 @@
 import org.junit.Test;
 import static org.junit.Assert.*;
-import static org.jelled.Ell.*;
+import ell.Data.var;
+import ell.Data.error;
+import static ell.Primitives.*;
 import java.io.FileReader;
 
 public class TestTypes {
@@ -88,6 +90,58 @@ public class TestTypes {
         assertTrue(equal(n1, number(23)));
         assertFalse(equal(n1, number(54)));
 
+        assertTrue(number(23) == n1); //small integers are shared
+        assertTrue(number(57.0) == n2);
+        assertTrue(number(-1L) == number(-1));
+        assertFalse(number(1000000) == number(1000000));
+        assertFalse(number(0.5) == number(0.5));
+        assertFalse(number(-0.0) == number(0.0));
+        assertTrue(equal(number(1000000), number(1000000.0)));
+    }
+
+    String str(var v) { return v.toString(); }
+
+    @Test
+    public void testInteger() {
+        var big = number(Long.MAX_VALUE);
+        assertTrue(isInteger(number(23)));
+        assertFalse(isInteger(number(23.0)));
+        assertTrue(isInteger(add(big, number(1))));
+        assertEquals("9223372036854775808", str(add(big, number(1))));
+        assertEquals("-9223372036854775809", str(subtract(number(Long.MIN_VALUE), number(1))));
+        assertEquals("85070591730234615847396907784232501249", str(multiply(big, big)));
+        assertTrue(equal(subtract(add(big, number(1)), number(1)), big));
+        assertEquals(Long.MAX_VALUE - 1, longValue(add(big, number(-1))));
+
+        //exact above 2^53, where doubles lose precision
+        var n = number(9007199254740993L);
+        assertEquals(9007199254740994L, longValue(add(n, number(1))));
+        assertFalse(equal(n, number(9007199254740992L)));
+
+        assertEquals("4.5", str(add(number(4), number(0.5))));
+        assertEquals("3.0", str(multiply(number(1.5), number(2)))); //reads back as a double
+        assertFalse(isInteger(multiply(number(2), number(2.0))));
+        assertTrue(equal(divide(number(6), number(3)), number(2)));
+        assertTrue(isInteger(divide(number(6), number(3))));
+        assertTrue(equal(divide(number(7), number(2)), number(3.5)));
+        assertEquals("9223372036854775808", str(divide(number(Long.MIN_VALUE), number(-1))));
+
+        assertTrue(equal(quotient(number(-7), number(2)), number(-3)));
+        assertTrue(equal(remainder(number(-7), number(2)), number(-1)));
+        assertTrue(equal(modulo(number(-7), number(2)), number(1)));
+        assertTrue(equal(modulo(number(7), number(-2)), number(-1)));
+        assertTrue(equal(modulo(number(-7.0), number(2)), number(1)));
+        try {
+            quotient(number(1), number(0));
+            fail("integer division by zero should throw an error");
+        } catch (ell.Data.error e) {
+        }
+
+        assertTrue(compare(number(1), number(2)) < 0);
+        assertTrue(compare(number(2.5), number(2)) > 0);
+        assertTrue(compare(add(big, number(1)), big) > 0);
+        assertTrue(compare(number(Double.NaN), number(1)) == 2);
+
     }
 
     @Test